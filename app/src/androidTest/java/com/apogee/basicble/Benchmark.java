@@ -0,0 +1,15 @@
+package com.apogee.basicble;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * timing loops, not run by default. ./gradlew connectedAndroidTest -Pbenchmark includes them.
+ * Excluded by the notAnnotation runner argument in app/build.gradle
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Benchmark {
+}
@@ -0,0 +1,114 @@
+package com.apogee.basicble.Utils;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.apogee.basicble.Benchmark;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the single pass toCaretString with the previous implementation, kept here as legacyToCaretString.
+ * Needs a device, as SpannableStringBuilder is not available in JVM unit tests.
+ * sameText runs with the instrumented tests. benchmark logs span count and time per KB for each input
+ * with tag CaretStringBenchmark and only runs with ./gradlew connectedAndroidTest -Pbenchmark, see Benchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CaretStringBenchmark {
+
+    private static final String TAG = "CaretStringBenchmark";
+    private static final int SIZE = 4096;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void sameText() {
+        for (String s : inputs()) {
+            CharSequence legacy = legacyToCaretString(s, true);
+            CharSequence current = TextUtil.toCaretString(s, true, new SpannableStringBuilder());
+            assertEquals(legacy.toString(), current.toString());
+        }
+    }
+
+    @Test
+    @Benchmark
+    public void benchmark() {
+        String[] names = {"text", "nmea", "binary"};
+        String[] inputs = inputs();
+        SpannableStringBuilder out = new SpannableStringBuilder();
+        for (int i = 0; i < inputs.length; i++) {
+            String s = inputs[i];
+            int legacySpans = spans(legacyToCaretString(s, true));
+            int spans = spans(TextUtil.toCaretString(s, true, out));
+            assertTrue(spans <= legacySpans);
+
+            long start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++)
+                legacyToCaretString(s, true);
+            long legacyNanos = (System.nanoTime() - start) / ROUNDS;
+            start = System.nanoTime();
+            for (int r = 0; r < ROUNDS; r++)
+                TextUtil.toCaretString(s, true, out);
+            long nanos = (System.nanoTime() - start) / ROUNDS;
+
+            Log.i(TAG, String.format("%-6s legacy: %5d spans %8.1f us/KB, current: %5d spans %8.1f us/KB",
+                    names[i], legacySpans, legacyNanos / 1000.0 * 1024 / SIZE, spans, nanos / 1000.0 * 1024 / SIZE));
+        }
+    }
+
+    private static String[] inputs() {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        StringBuilder nmea = new StringBuilder();
+        StringBuilder binary = new StringBuilder();
+        while (text.length() < SIZE)
+            text.append("The quick brown fox jumps over the lazy dog\n");
+        while (nmea.length() < SIZE)
+            nmea.append("$GNGGA,123519.00,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n");
+        for (int i = 0; i < SIZE; i++)
+            binary.append((char) random.nextInt(256));
+        return new String[]{text.substring(0, SIZE), nmea.substring(0, SIZE), binary.toString()};
+    }
+
+    private static int spans(CharSequence s) {
+        if (!(s instanceof Spanned))
+            return 0;
+        return ((Spanned) s).getSpans(0, s.length(), BackgroundColorSpan.class).length;
+    }
+
+    /*
+     * previous implementation
+     */
+    private static CharSequence legacyToCaretString(CharSequence s, boolean keepNewline) {
+        int length = s.length();
+        boolean found = false;
+        for (int pos = 0; pos < length; pos++) {
+            if (s.charAt(pos) < 32 && (!keepNewline || s.charAt(pos) != '\n')) {
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+            return s;
+        SpannableStringBuilder sb = new SpannableStringBuilder();
+        for (int pos = 0; pos < length; pos++)
+            if (s.charAt(pos) < 32 && (!keepNewline || s.charAt(pos) != '\n')) {
+                sb.append('^');
+                sb.append((char) (s.charAt(pos) + 64));
+                sb.setSpan(new BackgroundColorSpan(TextUtil.caretBackground), sb.length() - 2, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                sb.append(s.charAt(pos));
+            }
+        return sb;
+    }
+}
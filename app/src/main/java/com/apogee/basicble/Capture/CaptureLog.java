@@ -0,0 +1,546 @@
+package com.apogee.basicble.Capture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * append only log of raw received / sent chunks
+ * - records: int length, long time (epoch ns), byte type, payload
+ * - written into segment files of at most segmentSize bytes, named by the time of their first record,
+ *   the oldest segments are deleted when there are more than maxSegments
+ * - each segment has a sparse index file with (time, offset) every indexInterval bytes, used by Reader.seek()
+ * - append() copies the record into a preallocated ring of ringSize bytes under the lock, so memory is constant
+ *   and the caller may reuse its array. If the writer falls behind and the ring is full, the record is dropped
+ *   and counted, see getDropped(). The receiving thread never waits for the disk
+ * - a writer thread copies records from the ring into one reused direct buffer that is written to the
+ *   FileChannel when full. The segment is synced every SYNC_INTERVAL ms while records are written,
+ *   and when it is closed at rotation
+ * - reading uses memory mapped segments, see Reader
+ */
+public class CaptureLog implements Closeable {
+
+    public static final int TYPE_RECEIVE = 0;
+    public static final int TYPE_SEND = 1;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 32;
+    public static final int DEFAULT_RING_SIZE = 1024 * 1024; // several seconds of a saturated link
+    static final int HEADER = 13;          // int length, long time, byte type
+    static final int INDEX_ENTRY = 12;     // long time, int offset
+    static final int INDEX_INTERVAL = 64 * 1024;
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final long SYNC_INTERVAL = 1000; // ms
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+    private final Thread writer;
+    // guarded by this. Bytes [tail, head) of the ring are records in file format, not yet taken by the writer
+    private final byte[] ring;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER);
+    private long head;               // bytes appended since open
+    private long tail;               // bytes taken by the writer
+    private long flushed;            // bytes written to the segment files
+    private long flushRequest;       // flush() waits until flushed reaches this
+    private long dropped;            // records not appended because the ring was full
+    private boolean closed;
+    private boolean stopped;         // writer thread ended
+    private boolean writerWaiting;
+    private volatile IOException error;      // set by writer, further appends fail
+    // writer thread only
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE); // records not yet written
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(HEADER);
+    private final ByteBuffer indexEntry = ByteBuffer.allocateDirect(INDEX_ENTRY);
+    private final ArrayDeque<File> segments = new ArrayDeque<>(); // oldest first
+    private FileChannel segment;
+    private FileChannel index;
+    private int segmentPosition;     // bytes written + buffered in current segment
+    private int lastIndexed;         // offset of last index entry in current segment
+    private boolean unsynced;        // written since last force()
+    private long lastSync;           // ms
+
+    public CaptureLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    public CaptureLog(File dir, int segmentSize, int maxSegments) throws IOException {
+        this(dir, segmentSize, maxSegments, DEFAULT_RING_SIZE);
+    }
+
+    public CaptureLog(File dir, int segmentSize, int maxSegments, int ringSize) throws IOException {
+        if (segmentSize <= HEADER || ringSize <= HEADER)
+            throw new IllegalArgumentException("segment or ring size too small");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create " + dir);
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        ring = new byte[ringSize];
+        segments.addAll(Arrays.asList(listSegments(dir)));
+        writer = new Thread(this::run, "CaptureLog");
+        writer.start();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * current time in the format used for records: epoch ns, monotonic while this log is open
+     */
+    public long now() {
+        return baseMillis * 1000000L + (System.nanoTime() - baseNanos);
+    }
+
+    /**
+     * append one record with the current time. Time is taken under the same lock that orders the records,
+     * so times never decrease, whichever threads append
+     */
+    public synchronized void append(int type, byte[] data) throws IOException {
+        append(now(), type, data, 0, data.length);
+    }
+
+    /**
+     * copy one record into the ring, can be called from any thread. Write errors are thrown by later calls.
+     * If the ring is full the record is dropped, see getDropped()
+     *
+     * @param time epoch ns, must not decrease
+     */
+    public synchronized void append(long time, int type, byte[] data, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("closed");
+        IOException error = this.error;
+        if (error != null)
+            throw new IOException("write failed", error);
+        int size = HEADER + len;
+        if (size > segmentSize || size > ring.length)
+            throw new IllegalArgumentException("record larger than segment or ring");
+        if (ring.length - (head - tail) < size) {
+            dropped++;
+            return;
+        }
+        header.clear();
+        header.putInt(len).putLong(time).put((byte) type);
+        put(header.array(), 0, HEADER);
+        put(data, off, len);
+        if (writerWaiting)
+            notifyAll();
+    }
+
+    /**
+     * records dropped because the writer could not keep up
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * wait until all records appended so far are written, so that they are visible to readers
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            long target = head;
+            if (flushRequest < target) {
+                flushRequest = target;
+                notifyAll();
+            }
+            while (flushed < target && !stopped)
+                await();
+        }
+        IOException error = this.error;
+        if (error != null)
+            throw new IOException("write failed", error);
+    }
+
+    /**
+     * flush, then open a reader over all segments
+     */
+    public Reader openReader() throws IOException {
+        flush();
+        return new Reader(dir);
+    }
+
+    /**
+     * write all records in the ring, sync and stop the writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true; // append() fails from now on
+            notifyAll();
+            while (!stopped)
+                await();
+        }
+        IOException error = this.error;
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * wait for the writer, called with lock held
+     */
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * copy into the ring at head, called with lock held and enough space
+     */
+    private void put(byte[] src, int off, int len) {
+        int pos = (int) (head % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(src, off, ring, pos, first);
+        System.arraycopy(src, off + first, ring, 0, len - first);
+        head += len;
+    }
+
+    private void run() {
+        while (true) {
+            long from, to;
+            boolean closing, flushing;
+            synchronized (this) {
+                if (head == tail && !closed && flushRequest <= flushed) {
+                    writerWaiting = true;
+                    try {
+                        wait(SYNC_INTERVAL);
+                    } catch (InterruptedException ignored) {
+                        // stopped by close() only
+                    }
+                    writerWaiting = false;
+                }
+                from = tail;
+                to = head;
+                closing = closed;
+                flushing = flushRequest > flushed;
+            }
+            // [from, to) is not touched by append() until tail moves
+            try {
+                if (error == null) {
+                    write(from, to);
+                    if (closing)
+                        closeSegment();
+                    else if (flushing)
+                        flushBuffer();
+                    if (unsynced && System.currentTimeMillis() - lastSync >= SYNC_INTERVAL)
+                        sync();
+                }
+            } catch (IOException e) {
+                error = e;
+                closeQuietly();
+            }
+            synchronized (this) {
+                tail = to;
+                if (flushing || closing)
+                    flushed = to; // also after an error, flush() then throws it
+                stopped = closing;
+                notifyAll();
+            }
+            if (closing)
+                return;
+        }
+    }
+
+    /**
+     * write the records in ring bytes [from, to)
+     */
+    private void write(long from, long to) throws IOException {
+        long position = from;
+        while (position < to) {
+            recordHeader.clear();
+            get(position, recordHeader, HEADER);
+            int size = HEADER + recordHeader.getInt(0);
+            long time = recordHeader.getLong(4);
+            if (segment == null || segmentPosition + size > segmentSize)
+                rotate(time);
+            if (segmentPosition - lastIndexed >= INDEX_INTERVAL)
+                index(time);
+            long end = position + size;
+            while (position < end) {
+                if (!buffer.hasRemaining())
+                    flushBuffer();
+                int n = (int) Math.min(end - position, buffer.remaining());
+                get(position, buffer, n);
+                position += n;
+            }
+            segmentPosition += size;
+            unsynced = true;
+        }
+    }
+
+    /**
+     * copy len ring bytes at position into dst
+     */
+    private void get(long position, ByteBuffer dst, int len) {
+        int pos = (int) (position % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        dst.put(ring, pos, first);
+        dst.put(ring, 0, len - first);
+    }
+
+    private void rotate(long time) throws IOException {
+        closeSegment();
+        String name = String.format(Locale.US, "%019d", time);
+        File file = new File(dir, name + SEGMENT_SUFFIX);
+        segment = new FileOutputStream(file).getChannel();
+        index = new FileOutputStream(new File(dir, name + INDEX_SUFFIX)).getChannel();
+        segments.add(file);
+        segmentPosition = 0;
+        lastIndexed = -INDEX_INTERVAL;
+        lastSync = System.currentTimeMillis();
+        while (segments.size() > maxSegments) {
+            File oldest = segments.poll();
+            //noinspection ResultOfMethodCallIgnored
+            oldest.delete();
+            //noinspection ResultOfMethodCallIgnored
+            indexFile(oldest).delete();
+        }
+    }
+
+    private void index(long time) throws IOException {
+        indexEntry.clear();
+        indexEntry.putLong(time).putInt(segmentPosition);
+        indexEntry.flip();
+        writeFully(index, indexEntry);
+        lastIndexed = segmentPosition;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (segment == null)
+            return;
+        buffer.flip();
+        writeFully(segment, buffer);
+        buffer.clear();
+    }
+
+    private void sync() throws IOException {
+        if (!unsynced)
+            return;
+        flushBuffer();
+        segment.force(false);
+        unsynced = false;
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment == null)
+            return;
+        try {
+            flushBuffer();
+            segment.force(false);
+        } finally {
+            segment.close();
+            index.close();
+            segment = null;
+            index = null;
+            unsynced = false;
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (segment != null)
+                segment.close();
+            if (index != null)
+                index.close();
+        } catch (IOException ignored) {
+        }
+        segment = null;
+        index = null;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer src) throws IOException {
+        while (src.hasRemaining())
+            channel.write(src);
+    }
+
+    static File[] listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null)
+            return new File[0];
+        Arrays.sort(files); // names are fixed width times
+        return files;
+    }
+
+    static File indexFile(File segment) {
+        String name = segment.getName();
+        return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    static long segmentTime(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * sequential reader over memory mapped segments, not thread safe.
+     * Sees records flushed before it was opened; a record cut short by a crash ends its segment.
+     * <pre>
+     * reader.seek(time);
+     * while (reader.next())
+     *     use(reader.getTime(), reader.getType(), reader.getPayload());
+     * </pre>
+     */
+    public static class Reader implements Closeable {
+
+        private final File[] segments;
+        private int segmentIndex = -1;
+        private ByteBuffer map;      // current segment, position = next record
+        private ByteBuffer payload;  // view on map, limited to current payload
+        private long time;
+        private int type;
+        private int length;
+        private boolean pending;     // current record found by seek(), not yet returned by next()
+
+        public Reader(File dir) {
+            segments = listSegments(dir);
+        }
+
+        /**
+         * move to the next record
+         *
+         * @return false at end of log
+         */
+        public boolean next() throws IOException {
+            if (pending) {
+                pending = false;
+                return true;
+            }
+            while (true) {
+                if (map != null && map.remaining() >= HEADER) {
+                    int start = map.position();
+                    int len = map.getInt();
+                    if (len >= 0 && map.remaining() - 9 >= len) {
+                        time = map.getLong();
+                        type = map.get();
+                        length = len;
+                        int pos = map.position();
+                        payload.clear();
+                        payload.position(pos);
+                        payload.limit(pos + len);
+                        map.position(pos + len);
+                        return true;
+                    }
+                    map.position(start);
+                }
+                if (!openSegment(segmentIndex + 1, 0))
+                    return false;
+            }
+        }
+
+        /**
+         * position before the first record with time >= the given time
+         *
+         * @return false if there is no such record
+         */
+        public boolean seek(long time) throws IOException {
+            pending = false;
+            int first = 0; // last segment starting at or before time
+            for (int i = 0; i < segments.length; i++)
+                if (segmentTime(segments[i]) <= time)
+                    first = i;
+            if (!openSegment(first, indexedOffset(segments.length > 0 ? segments[first] : null, time)))
+                return false;
+            while (next()) {
+                if (this.time >= time) {
+                    pending = true;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * payload of current record, the buffer is reused and only valid until the next call to next()
+         */
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        @Override
+        public void close() {
+            map = null;
+            payload = null;
+            segmentIndex = segments.length;
+        }
+
+        private boolean openSegment(int i, int offset) throws IOException {
+            if (i >= segments.length) {
+                map = null;
+                segmentIndex = segments.length;
+                return false;
+            }
+            segmentIndex = i;
+            map = mapFile(segments[i]);
+            if (map == null) { // deleted by writer in the meantime
+                map = ByteBuffer.allocate(0);
+            }
+            map.position(Math.min(offset, map.limit()));
+            payload = map.duplicate();
+            return true;
+        }
+
+        /**
+         * offset of the last index entry with time <= the given time
+         */
+        private static int indexedOffset(File segment, long time) throws IOException {
+            if (segment == null)
+                return 0;
+            ByteBuffer index = mapFile(indexFile(segment));
+            if (index == null)
+                return 0;
+            int lo = 0, hi = index.limit() / INDEX_ENTRY - 1, offset = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (index.getLong(mid * INDEX_ENTRY) <= time) {
+                    offset = index.getInt(mid * INDEX_ENTRY + 8);
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return offset;
+        }
+
+        private static MappedByteBuffer mapFile(File file) throws IOException {
+            if (!file.exists())
+                return null;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                FileChannel channel = raf.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); // stays valid after close
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.apogee.basicble.Capture;
+
+import com.apogee.basicble.SQlite.BlockStore;
+import com.apogee.basicble.SQlite.DBHelper;
+import com.apogee.basicble.SQlite.RequiredParams;
+import com.apogee.basicble.Utils.TextUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * stream captured data to CSV, NDJSON or raw bytes
+ * - lines from the DBHelper store are read in keyset pages, compressed lines block by block,
+ *   records from a CaptureLog sequentially, so memory use does not depend on the export size
+ * - output goes through a BufferedOutputStream, optionally gzip compressed
+ * - filters: time range, device (lines only, the raw log has no device), direction
+ * Blocking, call from a background thread. cancel() can be called from any thread.
+ */
+public class Exporter {
+
+    public enum Format {CSV, NDJSON, RAW}
+
+    public interface ProgressListener {
+        /**
+         * @param done  exported lines, or read bytes for a CaptureLog
+         * @param total lines in range, or size of all segments for a CaptureLog
+         */
+        void onProgress(long done, long total);
+    }
+
+    private static final int PAGE_SIZE = 500;
+    private static final int PROGRESS_INTERVAL = 1000; // items between progress reports
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Format format;
+    private final boolean gzip;
+    private long fromTime = 0;              // epoch ms
+    private long toTime = Long.MAX_VALUE;
+    private String device;
+    private int direction = -1;             // -1 = all
+    private ProgressListener progressListener;
+    private volatile boolean cancelled;
+
+    public Exporter(Format format, boolean gzip) {
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    /**
+     * only export fromTime <= time < toTime, epoch ms
+     */
+    public void setTimeRange(long fromTime, long toTime) {
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    /**
+     * only export lines of this device, null for all
+     */
+    public void setDevice(String device) {
+        this.device = device;
+    }
+
+    /**
+     * only export one direction, RequiredParams.DIRECTION_* resp. CaptureLog.TYPE_*, -1 for all
+     */
+    public void setDirection(int direction) {
+        this.direction = direction;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * export lines from the DBHelper store, out is closed afterwards.
+     * Rows come first, then lines from compressed blocks (BlockStore), each in time order
+     *
+     * @return number of exported lines
+     */
+    public long exportLines(DBHelper helper, OutputStream out) throws IOException {
+        BlockStore blocks = helper.getBlockStore();
+        long total = helper.countTimeRange(device, direction, fromTime, toTime) + blocks.countTimeRange(device, fromTime, toTime);
+        OutputStream stream = open(out);
+        Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(256);
+        long[] next = {fromTime, -1}; // keyset: timestamp, id of last row
+        long[] count = {0};
+        IOException[] error = {null};
+        DBHelper.RowCallback line = (id, timestamp, rowDevice, rowDirection, response) -> {
+            if (direction >= 0 && rowDirection != direction)
+                return true;
+            sb.setLength(0);
+            switch (format) {
+                case CSV:
+                    sb.append(id).append(',').append(timestamp).append(',');
+                    appendCsv(sb, rowDevice).append(',').append(rowDirection).append(',');
+                    appendCsv(sb, response).append("\r\n");
+                    break;
+                case NDJSON:
+                    sb.append("{\"id\":").append(id).append(",\"timestamp\":").append(timestamp).append(",\"device\":");
+                    appendJson(sb, rowDevice).append(",\"direction\":").append(rowDirection).append(",\"response\":");
+                    appendJson(sb, response).append("}\n");
+                    break;
+                case RAW:
+                    if (response != null)
+                        sb.append(response);
+                    sb.append('\n');
+                    break;
+            }
+            try {
+                writer.append(sb);
+            } catch (IOException e) {
+                error[0] = e;
+                return false;
+            }
+            if (++count[0] % PROGRESS_INTERVAL == 0)
+                progress(count[0], total);
+            return !cancelled;
+        };
+        try {
+            if (format == Format.CSV)
+                writer.write("id,timestamp,device,direction,response\r\n");
+            while (true) {
+                int rows = helper.queryTimeRange(device, fromTime, toTime, next[0], next[1], PAGE_SIZE, (id, timestamp, rowDevice, rowDirection, response) -> {
+                    next[0] = timestamp;
+                    next[1] = id;
+                    return line.onRow(id, timestamp, rowDevice, rowDirection, response);
+                });
+                if (error[0] != null)
+                    throw error[0];
+                checkCancelled();
+                if (rows < PAGE_SIZE)
+                    break;
+            }
+            blocks.queryTimeRange(device, fromTime, toTime, line); // inflates one block at a time
+            if (error[0] != null)
+                throw error[0];
+            checkCancelled();
+            progress(count[0], Math.max(count[0], total));
+        } finally {
+            writer.close();
+        }
+        return count[0];
+    }
+
+    /**
+     * export records of an open CaptureLog, including the ones still queued for its writer
+     *
+     * @return number of exported records
+     */
+    public long exportRecords(CaptureLog log, OutputStream out) throws IOException {
+        log.flush();
+        return exportRecords(log.getDir(), out);
+    }
+
+    /**
+     * export records from a CaptureLog directory, out is closed afterwards.
+     * Only sees records already written, for a log that is still open use exportRecords(CaptureLog, OutputStream).
+     * RAW writes payloads back to back, usually together with setDirection(CaptureLog.TYPE_RECEIVE)
+     *
+     * @return number of exported records
+     */
+    public long exportRecords(File captureDir, OutputStream out) throws IOException {
+        long total = 0;
+        for (File segment : CaptureLog.listSegments(captureDir))
+            total += segment.length();
+        OutputStream stream = open(out);
+        Writer writer = format != Format.RAW ? new OutputStreamWriter(stream, StandardCharsets.UTF_8) : null;
+        StringBuilder sb = new StringBuilder(256);
+        char[] hex = new char[0];
+        byte[] bytes = new byte[0];
+        long count = 0;
+        long read = 0;
+        long to = toTime > Long.MAX_VALUE / 1000000 ? Long.MAX_VALUE : toTime * 1000000;
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(captureDir)) {
+            if (format == Format.CSV)
+                writer.write("time_ns,direction,hex\r\n");
+            boolean found = reader.seek(fromTime * 1000000);
+            while (found && reader.next() && reader.getTime() < to) {
+                read += CaptureLog.HEADER + reader.getLength();
+                if (direction >= 0 && reader.getType() != direction)
+                    continue;
+                ByteBuffer payload = reader.getPayload();
+                if (format == Format.RAW) {
+                    if (bytes.length < payload.remaining())
+                        bytes = new byte[Math.max(payload.remaining(), 2 * bytes.length)];
+                    int length = payload.remaining();
+                    payload.get(bytes, 0, length);
+                    stream.write(bytes, 0, length);
+                } else {
+                    if (hex.length < 3 * payload.remaining())
+                        hex = new char[Math.max(3 * payload.remaining(), 2 * hex.length)];
+                    int length = TextUtil.encodeHex(payload, hex, 0);
+                    sb.setLength(0);
+                    if (format == Format.CSV) {
+                        sb.append(reader.getTime()).append(',').append(reader.getType()).append(',').append(hex, 0, length).append("\r\n");
+                    } else {
+                        sb.append("{\"time\":").append(reader.getTime()).append(",\"direction\":").append(reader.getType())
+                                .append(",\"hex\":\"").append(hex, 0, length).append("\"}\n");
+                    }
+                    writer.append(sb);
+                }
+                if (++count % PROGRESS_INTERVAL == 0) {
+                    checkCancelled();
+                    progress(read, total);
+                }
+            }
+            progress(total, total);
+        } finally {
+            if (writer != null)
+                writer.close();
+            else
+                stream.close();
+        }
+        return count;
+    }
+
+    private OutputStream open(OutputStream out) throws IOException {
+        cancelled = false;
+        if (gzip)
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        return new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    private void progress(long done, long total) {
+        if (progressListener != null)
+            progressListener.onProgress(done, total);
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (cancelled || Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("export cancelled");
+    }
+
+    /**
+     * RFC 4180: quoted if it contains separator, quote or line break
+     */
+    static StringBuilder appendCsv(StringBuilder sb, String s) {
+        if (s == null)
+            return sb;
+        boolean quote = false;
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote)
+            return sb.append(s);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"')
+                sb.append('"');
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    static StringBuilder appendJson(StringBuilder sb, String s) {
+        if (s == null)
+            return sb.append("null");
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+}
@@ -0,0 +1,140 @@
+package com.apogee.basicble.Capture;
+
+import com.apogee.basicble.CommunicationLibrary.SerialListener;
+
+import java.io.EOFException;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * feed a recorded CaptureLog into a SerialListener, like SerialSocket does with live data
+ * - onSerialConnect, then onSerialRead for each received chunk, sent chunks are skipped
+ * - at the end onSerialIoError with EOFException, like a lost connection
+ * - timing: original inter-arrival times divided by speed, or no delays with AS_FAST_AS_POSSIBLE.
+ *   Delays are measured from the start, so they do not add up drift
+ * Plain Java without Bluetooth or Android classes, so it also runs in JVM tests.
+ */
+public class ReplaySource {
+
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /**
+     * time source for delays, replaced in tests
+     */
+    interface Clock {
+        long nanoTime();
+
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleep(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+
+    private final File dir;
+    private final double speed;
+    private long fromTime = Long.MIN_VALUE;
+    private long toTime = Long.MAX_VALUE;
+    private Clock clock = SYSTEM_CLOCK;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    /**
+     * @param dir   CaptureLog directory
+     * @param speed 1 = original timing, 2 = twice as fast, AS_FAST_AS_POSSIBLE = no delays
+     */
+    public ReplaySource(File dir, double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("speed < 0");
+        this.dir = dir;
+        this.speed = speed;
+    }
+
+    /**
+     * only replay records with fromTime <= time < toTime (epoch ns)
+     */
+    public void setRange(long fromTime, long toTime) {
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+    }
+
+    void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * replay in background thread
+     */
+    public synchronized void start(SerialListener listener) {
+        if (thread != null)
+            throw new IllegalStateException("already started");
+        thread = new Thread(() -> run(listener), "ReplaySource");
+        thread.start();
+    }
+
+    /**
+     * stop replay without further callbacks
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread != null && thread != Thread.currentThread())
+            thread.interrupt();
+    }
+
+    public synchronized void join() throws InterruptedException {
+        if (thread != null)
+            thread.join();
+    }
+
+    /**
+     * replay in calling thread, returns after the last record or stop()
+     */
+    public void run(SerialListener listener) {
+        if (stopped)
+            return;
+        listener.onSerialConnect();
+        Exception end = new EOFException("replay complete");
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(dir)) {
+            long firstTime = 0;
+            long startNanos = 0;
+            boolean first = true;
+            boolean found = reader.seek(fromTime);
+            while (found && !stopped && reader.next()) {
+                if (reader.getTime() >= toTime)
+                    break;
+                if (reader.getType() != CaptureLog.TYPE_RECEIVE)
+                    continue;
+                if (first) {
+                    firstTime = reader.getTime();
+                    startNanos = clock.nanoTime();
+                    first = false;
+                } else if (speed != AS_FAST_AS_POSSIBLE) {
+                    long due = startNanos + (long) ((reader.getTime() - firstTime) / speed);
+                    long delay = due - clock.nanoTime();
+                    if (delay > 0)
+                        clock.sleep(delay);
+                }
+                ByteBuffer payload = reader.getPayload();
+                byte[] data = new byte[payload.remaining()]; // listener keeps it, so no reuse
+                payload.get(data);
+                if (stopped)
+                    break;
+                listener.onSerialRead(data);
+            }
+        } catch (InterruptedException e) {
+            return; // stop()
+        } catch (Exception e) {
+            end = e;
+        }
+        if (!stopped)
+            listener.onSerialIoError(end);
+    }
+}
@@ -0,0 +1,220 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * send one-shot and periodic commands
+ * - deadlines are computed from the start time (start + n * period), so timing does not drift with execution delays
+ * - the payload is passed in as byte[] once and written as is
+ * - if a deadline finds the link still busy with earlier writes, the poll is skipped and counted as missed
+ *   instead of queueing a duplicate, late deadlines are skipped too instead of being sent in a burst
+ * - one-shot commands are not skipped, they wait until the link is no longer busy (at most MAX_BUSY_WAIT)
+ *   and report success or failure to their callback on the callback executor
+ */
+public class CommandScheduler {
+
+    public interface Link {
+        void write(byte[] data) throws IOException;
+
+        boolean isBusy();
+    }
+
+    public interface Callback {
+        void onSent();
+
+        void onError(IOException e);
+    }
+
+    private static final long BUSY_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    static final long MAX_BUSY_WAIT_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    public class Task implements Runnable {
+        private final byte[] payload;
+        private final long periodNanos; // 0 for one-shot
+        private final Callback callback; // one-shot only
+        private final long startNanos;
+        private long deadline;
+        private long sent;
+        private long missed;
+        private boolean canceled;
+        private ScheduledFuture<?> future;
+
+        private Task(byte[] payload, long delayNanos, long periodNanos, Callback callback) {
+            this.payload = payload;
+            this.periodNanos = periodNanos;
+            this.callback = callback;
+            this.startNanos = System.nanoTime();
+            this.deadline = startNanos + delayNanos;
+        }
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            if (periodNanos == 0) {
+                runOnce(now);
+                return;
+            }
+            synchronized (this) {
+                if (canceled)
+                    return;
+                long late = now - deadline;
+                if (late >= periodNanos) { // overslept, e.g. device sleep. skip instead of catching up
+                    long skipped = late / periodNanos;
+                    missed += skipped;
+                    deadline += skipped * periodNanos;
+                }
+            }
+            boolean ok = false;
+            if (!link.isBusy()) { // skip poll instead of queueing a duplicate
+                try {
+                    link.write(payload);
+                    ok = true;
+                } catch (IOException ignored) {
+                    // not connected, counted as missed
+                }
+            }
+            synchronized (this) {
+                if (ok)
+                    sent++;
+                else
+                    missed++;
+                if (canceled)
+                    return;
+                deadline += periodNanos;
+                future = executor.schedule(this, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void runOnce(long now) {
+            IOException error = null;
+            if (link.isBusy()) {
+                if (now - deadline < MAX_BUSY_WAIT_NANOS) {
+                    synchronized (this) {
+                        if (!canceled)
+                            future = executor.schedule(this, BUSY_RETRY_NANOS, TimeUnit.NANOSECONDS);
+                    }
+                    return;
+                }
+                error = new IOException("link busy for " + TimeUnit.NANOSECONDS.toMillis(now - deadline) + " ms");
+            } else {
+                try {
+                    link.write(payload);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                if (error == null)
+                    sent++;
+                else
+                    missed++;
+                if (canceled)
+                    return;
+                canceled = true;
+                remove(this);
+            }
+            final IOException e = error;
+            callbackExecutor.execute(() -> {
+                if (e == null)
+                    callback.onSent();
+                else
+                    callback.onError(e);
+            });
+        }
+
+        /**
+         * no further writes, a one-shot task does not call back after cancel
+         */
+        public synchronized void cancel() {
+            canceled = true;
+            if (future != null)
+                future.cancel(false);
+            remove(this);
+        }
+
+        public synchronized long getSentCount() {
+            return sent;
+        }
+
+        public synchronized long getMissedCount() {
+            return missed;
+        }
+
+        /**
+         * achieved commands per second since the task was scheduled
+         */
+        public synchronized double getRate() {
+            long elapsed = System.nanoTime() - startNanos;
+            return elapsed > 0 ? sent * 1e9 / elapsed : 0;
+        }
+
+        private synchronized void start() {
+            future = executor.schedule(this, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final Link link;
+    private final Executor callbackExecutor;
+    private final ScheduledThreadPoolExecutor executor;
+    private final List<Task> tasks = new ArrayList<>();
+
+    public CommandScheduler(Link link, Executor callbackExecutor) {
+        this.link = link;
+        this.callbackExecutor = callbackExecutor;
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "CommandScheduler");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    public Task scheduleOnce(byte[] payload, long delayMillis, Callback callback) {
+        return add(new Task(payload, TimeUnit.MILLISECONDS.toNanos(delayMillis), 0, callback));
+    }
+
+    /**
+     * first write after one period
+     */
+    public Task schedulePeriodic(byte[] payload, long periodMillis) {
+        if (periodMillis <= 0)
+            throw new IllegalArgumentException("period <= 0");
+        long period = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        return add(new Task(payload, period, period, null));
+    }
+
+    public void cancelAll() {
+        List<Task> copy;
+        synchronized (tasks) {
+            copy = new ArrayList<>(tasks);
+        }
+        for (Task task : copy)
+            task.cancel();
+    }
+
+    public void shutdown() {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    private Task add(Task task) {
+        synchronized (tasks) {
+            tasks.add(task);
+        }
+        task.start();
+        return task;
+    }
+
+    private void remove(Task task) {
+        synchronized (tasks) {
+            tasks.remove(task);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * split the raw notification stream into text lines
+ * - lines are terminated by LF, a CR directly before the LF is dropped
+ * - lines are decoded as UTF-8, invalid bytes become U+FFFD
+ * - partial lines are carried over to the next chunk
+ * - overlong lines (no LF within maxLength bytes) are cut, so a binary stream can't grow the buffer forever.
+ *   The cut is moved before a UTF-8 sequence that is not complete yet
+ */
+public class LineFramer {
+
+    public interface LineListener {
+        void onLine(String line);
+
+        /**
+         * line as bytes, only valid during the call. Override to skip lines without creating a String
+         */
+        default void onLine(byte[] buffer, int length) {
+            onLine(new String(buffer, 0, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final int DEFAULT_MAX_LENGTH = 4096;
+
+    private final byte[] buffer; // reused for every chunk, only holds the current partial line
+    private int length;
+
+    public LineFramer() {
+        this(DEFAULT_MAX_LENGTH);
+    }
+
+    public LineFramer(int maxLength) {
+        buffer = new byte[maxLength];
+    }
+
+    /**
+     * append a chunk and report every line completed by it
+     */
+    public void feed(byte[] data, LineListener listener) {
+        for (byte b : data) {
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && buffer[end - 1] == '\r')
+                    end--;
+                listener.onLine(buffer, end);
+                length = 0;
+            } else {
+                if (length == buffer.length) {
+                    int cut = utf8Boundary(buffer, length);
+                    listener.onLine(buffer, cut);
+                    length -= cut;
+                    System.arraycopy(buffer, cut, buffer, 0, length);
+                }
+                buffer[length++] = b;
+            }
+        }
+    }
+
+    /**
+     * @return length without an incomplete UTF-8 sequence at the end, length itself if there is none
+     */
+    static int utf8Boundary(byte[] buffer, int length) {
+        int start = length - 1;
+        while (start > 0 && start > length - 4 && (buffer[start] & 0xc0) == 0x80)
+            start--; // continuation bytes
+        int lead = buffer[start] & 0xff;
+        int needed = lead >= 0xf0 ? 4 : lead >= 0xe0 ? 3 : lead >= 0xc0 ? 2 : 1;
+        return start > 0 && length - start < needed ? start : length;
+    }
+
+    /**
+     * drop a pending partial line, e.g. after reconnect
+     */
+    public void reset() {
+        length = 0;
+    }
+}
@@ -0,0 +1,190 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import com.apogee.basicble.Utils.TextUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * command batch compiled once from a script, payloads are encoded to byte[] at compile time
+ * <p>
+ * script syntax, one statement per line, '#' starts a comment line:
+ * <pre>
+ * send $PAPOGEE,GET,VERSION      write text + newline
+ * sendhex B5 62 06 01            write raw bytes
+ * expect $PAPOGEE,VERSION        previous send waits for a line with this prefix
+ * expect /\$PAPOGEE,OK,[0-9]+/   ... or matching this regex
+ * timeout 2000                   response timeout in ms for following expects
+ * wait 500                       pause in ms
+ * loop 10 ... end                repeat the enclosed statements, loops can be nested
+ * </pre>
+ */
+public class Macro {
+
+    enum StepType {Send, Wait, Loop, End}
+
+    static class Step {
+        final StepType type;
+        final int line; // script line, for error messages
+        byte[] payload;
+        ResponseMatcher matcher; // null if the send does not wait for a response
+        long timeoutMillis;
+        long waitMillis;
+        int count;  // Loop: number of iterations
+        int target; // Loop: index of matching End, End: index of matching Loop
+
+        Step(StepType type, int line) {
+            this.type = type;
+            this.line = line;
+        }
+    }
+
+    private static final long DEFAULT_TIMEOUT = 1000;
+
+    final Step[] steps;
+    final long totalSends; // including loop iterations, for progress
+
+    private Macro(Step[] steps, long totalSends) {
+        this.steps = steps;
+        this.totalSends = totalSends;
+    }
+
+    public long getTotalSends() {
+        return totalSends;
+    }
+
+    public static Macro compile(String script, String newline) throws ParseException {
+        List<Step> steps = new ArrayList<>();
+        ArrayDeque<Integer> loops = new ArrayDeque<>();
+        long timeout = DEFAULT_TIMEOUT;
+        String[] lines = script.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            int lineNo = i + 1;
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            int space = line.indexOf(' ');
+            String keyword = space < 0 ? line : line.substring(0, space);
+            String arg = space < 0 ? "" : line.substring(space + 1).trim();
+            Step step;
+            switch (keyword) {
+                case "send":
+                    step = new Step(StepType.Send, lineNo);
+                    step.payload = (arg + newline).getBytes(StandardCharsets.UTF_8);
+                    steps.add(step);
+                    break;
+                case "sendhex":
+                    step = new Step(StepType.Send, lineNo);
+                    step.payload = parseHex(arg, lineNo);
+                    steps.add(step);
+                    break;
+                case "expect":
+                    Step last = steps.isEmpty() ? null : steps.get(steps.size() - 1);
+                    if (last == null || last.type != StepType.Send || last.matcher != null)
+                        throw new ParseException("line " + lineNo + ": expect without preceding send", lineNo);
+                    if (arg.length() >= 2 && arg.startsWith("/") && arg.endsWith("/"))
+                        last.matcher = ResponseMatcher.regex(parseRegex(arg.substring(1, arg.length() - 1), lineNo));
+                    else
+                        last.matcher = ResponseMatcher.prefix(arg);
+                    last.timeoutMillis = timeout; // timeout in effect at the expect, not at the send
+                    break;
+                case "timeout":
+                    timeout = parseNumber(arg, lineNo);
+                    break;
+                case "wait":
+                    step = new Step(StepType.Wait, lineNo);
+                    step.waitMillis = parseNumber(arg, lineNo);
+                    steps.add(step);
+                    break;
+                case "loop":
+                    step = new Step(StepType.Loop, lineNo);
+                    long count = parseNumber(arg, lineNo);
+                    if (count > Integer.MAX_VALUE)
+                        throw new ParseException("line " + lineNo + ": loop count " + count + " too large", lineNo);
+                    step.count = (int) count;
+                    loops.push(steps.size());
+                    steps.add(step);
+                    break;
+                case "end":
+                    if (loops.isEmpty())
+                        throw new ParseException("line " + lineNo + ": end without loop", lineNo);
+                    int start = loops.pop();
+                    step = new Step(StepType.End, lineNo);
+                    step.target = start;
+                    steps.get(start).target = steps.size();
+                    steps.add(step);
+                    break;
+                default:
+                    throw new ParseException("line " + lineNo + ": unknown statement '" + keyword + "'", lineNo);
+            }
+        }
+        if (!loops.isEmpty()) {
+            int lineNo = steps.get(loops.peek()).line;
+            throw new ParseException("line " + lineNo + ": loop without end", lineNo);
+        }
+        Step[] array = steps.toArray(new Step[0]);
+        return new Macro(array, countSends(array, 0, array.length));
+    }
+
+    /**
+     * nested loops can exceed a long, reported at the loop where it happens
+     */
+    private static long countSends(Step[] steps, int from, int to) throws ParseException {
+        long count = 0;
+        for (int i = from; i < to; i++) {
+            Step step = steps[i];
+            if (step.type == StepType.Send) {
+                count++;
+            } else if (step.type == StepType.Loop) {
+                try {
+                    count = Math.addExact(count, Math.multiplyExact(step.count, countSends(steps, i + 1, step.target)));
+                } catch (ArithmeticException e) {
+                    throw new ParseException("line " + step.line + ": too many sends", step.line);
+                }
+                i = step.target;
+            }
+        }
+        return count;
+    }
+
+    private static Pattern parseRegex(String regex, int lineNo) throws ParseException {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new ParseException("line " + lineNo + ": invalid regex '" + regex + "', " + e.getDescription(), lineNo);
+        }
+    }
+
+    private static long parseNumber(String arg, int lineNo) throws ParseException {
+        try {
+            long value = Long.parseLong(arg);
+            if (value < 0)
+                throw new NumberFormatException();
+            return value;
+        } catch (NumberFormatException e) {
+            throw new ParseException("line " + lineNo + ": invalid number '" + arg + "'", lineNo);
+        }
+    }
+
+    /**
+     * TextUtil skips other chars and keeps a single trailing digit, a script is checked strictly instead
+     */
+    private static byte[] parseHex(String arg, int lineNo) throws ParseException {
+        int digits = 0;
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c < 128 && Character.digit(c, 16) >= 0)
+                digits++;
+            else if (c != ' ')
+                throw new ParseException("line " + lineNo + ": invalid hex '" + arg + "'", lineNo);
+        }
+        if (digits == 0 || digits % 2 != 0)
+            throw new ParseException("line " + lineNo + ": invalid hex '" + arg + "'", lineNo);
+        return TextUtil.fromHexString(arg);
+    }
+}
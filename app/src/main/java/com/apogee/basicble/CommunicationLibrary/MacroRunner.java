@@ -0,0 +1,129 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * execute a compiled Macro in a background thread
+ * - sends without expect are written back to back, SerialSocket queues them at line rate
+ * - sends with expect go through the RequestEngine and block the macro until matched or timed out
+ * - progress and result are delivered on the callback executor
+ */
+public class MacroRunner {
+
+    public interface Listener {
+        void onMacroProgress(long sent, long total);
+
+        void onMacroComplete();
+
+        void onMacroError(int line, Exception e);
+    }
+
+    private static final long PROGRESS_INTERVAL_NANOS = 100_000_000; // limit UI updates to 10/s
+
+    private final Macro macro;
+    private final RequestEngine.Writer writer;
+    private final RequestEngine requestEngine;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private Thread thread;
+    private volatile boolean canceled;
+
+    public MacroRunner(Macro macro, RequestEngine.Writer writer, RequestEngine requestEngine, Executor callbackExecutor, Listener listener) {
+        this.macro = macro;
+        this.writer = writer;
+        this.requestEngine = requestEngine;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            throw new IllegalStateException("already started");
+        thread = new Thread(this::run, "MacroRunner");
+        thread.start();
+    }
+
+    public synchronized void cancel() {
+        canceled = true;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    private void run() {
+        Macro.Step[] steps = macro.steps;
+        int[] remaining = new int[steps.length]; // loop iterations left, indexed by Loop step
+        long sent = 0;
+        long lastProgress = 0;
+        int pc = 0;
+        Macro.Step step = null;
+        try {
+            while (pc < steps.length) {
+                if (canceled)
+                    throw new InterruptedException("canceled");
+                step = steps[pc];
+                switch (step.type) {
+                    case Send:
+                        if (step.matcher == null)
+                            writer.write(step.payload);
+                        else
+                            request(step);
+                        sent++;
+                        long now = System.nanoTime();
+                        if (now - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                            lastProgress = now;
+                            final long progress = sent;
+                            callbackExecutor.execute(() -> listener.onMacroProgress(progress, macro.totalSends));
+                        }
+                        pc++;
+                        break;
+                    case Wait:
+                        Thread.sleep(step.waitMillis);
+                        pc++;
+                        break;
+                    case Loop:
+                        remaining[pc] = step.count;
+                        pc = step.count > 0 ? pc + 1 : step.target + 1;
+                        break;
+                    case End:
+                        pc = --remaining[step.target] > 0 ? step.target + 1 : pc + 1;
+                        break;
+                }
+            }
+        } catch (Exception e) {
+            final int line = step != null ? step.line : 0;
+            callbackExecutor.execute(() -> listener.onMacroError(line, e));
+            return;
+        }
+        final long total = sent;
+        callbackExecutor.execute(() -> {
+            listener.onMacroProgress(total, macro.totalSends);
+            listener.onMacroComplete();
+        });
+    }
+
+    private void request(Macro.Step step) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        Exception[] error = new Exception[1];
+        RequestEngine.Request request = requestEngine.submit(step.payload, step.matcher, step.timeoutMillis, new RequestEngine.Callback() {
+            @Override
+            public void onResponse(String response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error[0] = e;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            request.cancel();
+            throw e;
+        }
+        if (error[0] != null)
+            throw error[0];
+    }
+}
@@ -0,0 +1,328 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * correlate commands with their responses
+ * - each request carries a ResponseMatcher and a timeout
+ * - up to maxOutstanding requests are on the wire at the same time (pipelining),
+ *   further requests wait in order and are written as soon as a slot is free
+ * - received data is framed into lines, each line completes the oldest live request it matches
+ * - cancelled and timed out requests stay outstanding as tombstones for another timeout period.
+ *   A line goes to the oldest live request it matches, a tombstone only swallows lines no live request matches,
+ *   so one lost response does not shift all later responses by one. Tombstones don't use a slot of the window
+ * - callbacks are delivered on the given executor, never while holding the lock
+ */
+public class RequestEngine implements LineFramer.LineListener {
+
+    public interface Writer {
+        void write(byte[] data) throws IOException;
+    }
+
+    public interface Callback {
+        void onResponse(String response);
+
+        void onError(Exception e);
+    }
+
+    public interface BatchCallback {
+        void onComplete(List<String> responses);
+
+        void onError(int index, Exception e);
+    }
+
+    /**
+     * one command of a batch
+     */
+    public static class Command {
+        final byte[] payload;
+        final ResponseMatcher matcher;
+        final long timeoutMillis;
+
+        public Command(byte[] payload, ResponseMatcher matcher, long timeoutMillis) {
+            this.payload = payload;
+            this.matcher = matcher;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    public class Request {
+        private final byte[] payload;
+        private final ResponseMatcher matcher;
+        private final long timeoutMillis;
+        private final Callback callback;
+        private ScheduledFuture<?> timeout;
+        private boolean done;
+        private boolean written;   // in outstanding, else in waiting
+
+        private Request(byte[] payload, ResponseMatcher matcher, long timeoutMillis, Callback callback) {
+            this.payload = payload;
+            this.matcher = matcher;
+            this.timeoutMillis = timeoutMillis;
+            this.callback = callback;
+        }
+
+        /**
+         * forget the request without calling back. If already written, a late response is swallowed
+         */
+        public void cancel() {
+            synchronized (RequestEngine.this) {
+                if (done)
+                    return;
+                done = true;
+                if (written) {
+                    if (timeout != null)
+                        timeout.cancel(false);
+                    bury(this);
+                } else {
+                    waiting.remove(this);
+                }
+            }
+            pump();
+        }
+    }
+
+    private static final int DEFAULT_MAX_OUTSTANDING = 4;
+
+    private final Writer writer;
+    private final Executor callbackExecutor;
+    private final ScheduledExecutorService timer;
+    private final LineFramer framer = new LineFramer();
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();     // not yet written
+    private final ArrayDeque<Request> outstanding = new ArrayDeque<>(); // written, waiting for response, including tombstones
+    private int live; // outstanding requests that are not tombstones
+    private int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+
+    public RequestEngine(Writer writer, Executor callbackExecutor) {
+        this.writer = writer;
+        this.callbackExecutor = callbackExecutor;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "RequestEngine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true); // timeouts are cancelled far more often than they fire
+        timer = executor;
+    }
+
+    /**
+     * number of requests written before their responses arrived.
+     * 1 = strict request/response, larger values hide the round trip time for independent commands
+     */
+    public synchronized void setMaxOutstanding(int maxOutstanding) {
+        if (maxOutstanding < 1)
+            throw new IllegalArgumentException("maxOutstanding < 1");
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    public Request submit(byte[] payload, ResponseMatcher matcher, long timeoutMillis, Callback callback) {
+        Request request = new Request(payload, matcher, timeoutMillis, callback);
+        synchronized (this) {
+            waiting.add(request);
+        }
+        pump();
+        return request;
+    }
+
+    /**
+     * run commands in order, each one is written as soon as the window allows.
+     * The batch stops at the first error, remaining commands are cancelled.
+     */
+    public void submitBatch(List<Command> commands, BatchCallback callback) {
+        final int count = commands.size();
+        final String[] responses = new String[count];
+        final List<Request> requests = new ArrayList<>(count);
+        final int[] remaining = {count};
+        final boolean[] failed = {false};
+        if (count == 0) {
+            callbackExecutor.execute(() -> callback.onComplete(new ArrayList<>()));
+            return;
+        }
+        synchronized (this) {
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                Command command = commands.get(i);
+                Request request = new Request(command.payload, command.matcher, command.timeoutMillis, new Callback() {
+                    @Override
+                    public void onResponse(String response) {
+                        responses[index] = response;
+                        if (--remaining[0] == 0 && !failed[0]) {
+                            List<String> list = new ArrayList<>(count);
+                            for (String s : responses)
+                                list.add(s);
+                            callback.onComplete(list);
+                        }
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        if (failed[0])
+                            return;
+                        failed[0] = true;
+                        for (Request r : requests)
+                            r.cancel();
+                        callback.onError(index, e);
+                    }
+                });
+                requests.add(request);
+                waiting.add(request);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * raw data from the serial stream
+     */
+    public void onData(byte[] data) {
+        synchronized (framer) {
+            framer.feed(data, this);
+        }
+    }
+
+    @Override
+    public void onLine(byte[] buffer, int length) {
+        synchronized (this) {
+            if (outstanding.isEmpty())
+                return; // no String for lines nobody waits for
+        }
+        LineFramer.LineListener.super.onLine(buffer, length);
+    }
+
+    @Override
+    public void onLine(String line) {
+        Request matched = null;
+        synchronized (this) {
+            Request tombstone = null;
+            for (Request request : outstanding) {
+                if (!request.matcher.matches(line))
+                    continue;
+                if (!request.done) {
+                    matched = request;
+                    break;
+                }
+                if (tombstone == null)
+                    tombstone = request;
+            }
+            if (matched == null) {
+                // late response of a cancelled or timed out request, or nobody waits for it
+                if (tombstone != null) {
+                    outstanding.remove(tombstone);
+                    if (tombstone.timeout != null)
+                        tombstone.timeout.cancel(false); // tombstone expiry
+                }
+                return;
+            }
+            outstanding.remove(matched);
+            matched.done = true;
+            live--;
+            if (matched.timeout != null)
+                matched.timeout.cancel(false);
+        }
+        final Request request = matched;
+        callbackExecutor.execute(() -> request.callback.onResponse(line));
+        pump();
+    }
+
+    /**
+     * fail all pending requests, e.g. on disconnect
+     */
+    public void cancelAll(Exception e) {
+        List<Request> failed = new ArrayList<>();
+        synchronized (this) {
+            failed.addAll(outstanding);
+            failed.addAll(waiting);
+            outstanding.clear();
+            waiting.clear();
+            live = 0;
+            for (Iterator<Request> it = failed.iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.timeout != null)
+                    request.timeout.cancel(false);
+                if (request.done)
+                    it.remove(); // tombstone, already reported
+                request.done = true;
+            }
+        }
+        synchronized (framer) {
+            framer.reset();
+        }
+        for (Request request : failed)
+            callbackExecutor.execute(() -> request.callback.onError(e));
+    }
+
+    public void shutdown() {
+        cancelAll(new IOException("shutdown"));
+        timer.shutdownNow();
+    }
+
+    /**
+     * write waiting requests while the window has room.
+     * Writes happen under the lock to keep them in submit order, SerialSocket.write only queues.
+     */
+    private void pump() {
+        List<Request> failed = null;
+        List<IOException> errors = null;
+        synchronized (this) {
+            while (live < maxOutstanding && !waiting.isEmpty()) {
+                Request request = waiting.poll();
+                try {
+                    writer.write(request.payload);
+                } catch (IOException e) {
+                    request.done = true;
+                    if (failed == null) {
+                        failed = new ArrayList<>();
+                        errors = new ArrayList<>();
+                    }
+                    failed.add(request);
+                    errors.add(e);
+                    continue;
+                }
+                request.written = true;
+                outstanding.add(request);
+                live++;
+                request.timeout = timer.schedule(() -> onTimeout(request), request.timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (failed != null) {
+            for (int i = 0; i < failed.size(); i++) {
+                final Request request = failed.get(i);
+                final IOException e = errors.get(i);
+                callbackExecutor.execute(() -> request.callback.onError(e));
+            }
+        }
+    }
+
+    private void onTimeout(Request request) {
+        synchronized (this) {
+            if (request.done)
+                return;
+            request.done = true;
+            bury(request);
+        }
+        callbackExecutor.execute(() -> request.callback.onError(new TimeoutException("no response within " + request.timeoutMillis + " ms")));
+        pump();
+    }
+
+    /**
+     * keep a written request as tombstone for another timeout period, called with lock held
+     */
+    private void bury(Request request) {
+        live--;
+        request.timeout = timer.schedule(() -> {
+            synchronized (this) {
+                outstanding.remove(request);
+            }
+        }, request.timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,28 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import java.util.regex.Pattern;
+
+/**
+ * decides if a received line is the response to a request
+ * use the factories for the common cases or implement it for any other frame predicate
+ */
+public interface ResponseMatcher {
+
+    boolean matches(String line);
+
+    static ResponseMatcher prefix(String prefix) {
+        return line -> line.startsWith(prefix);
+    }
+
+    static ResponseMatcher regex(String regex) {
+        return regex(Pattern.compile(regex));
+    }
+
+    static ResponseMatcher regex(Pattern pattern) {
+        return line -> pattern.matcher(line).matches();
+    }
+
+    static ResponseMatcher any() {
+        return line -> true;
+    }
+}
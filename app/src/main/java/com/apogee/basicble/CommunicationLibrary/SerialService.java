@@ -7,19 +7,30 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import com.apogee.basicble.Capture.CaptureLog;
+import com.apogee.basicble.Capture.ReplaySource;
 import com.apogee.basicble.R;
+import com.apogee.basicble.SQlite.CaptureStore;
+import com.apogee.basicble.SQlite.DBHelper;
+import com.apogee.basicble.SQlite.RequiredParams;
+import com.apogee.basicble.SQlite.RetentionEngine;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
  * create notification and queue serial data while activity is not in the foreground
@@ -33,6 +44,8 @@ public class SerialService extends Service implements SerialListener {
         }
     }
 
+    private static final String TAG = "SerialService";
+
     private enum QueueType {Connect, ConnectError, Read, IoError}  // Group of constants for the scanState status
 
     private static class QueueItem {
@@ -70,6 +83,26 @@ public class SerialService extends Service implements SerialListener {
     private final QueueItem lastRead;
     private SerialSocket socket; // initialing the serialSocket class
     private SerialListener listener; // initialing the serialListener class
+    private final RequestEngine requestEngine; // correlates written commands with received responses
+    private final CommandScheduler commandScheduler; // periodic and delayed commands
+    private final LineFramer captureFramer = new LineFramer(); // received lines for captureStore, used in socket thread only
+    private CaptureStore captureStore; // persists every received line and every sent command
+    private volatile String captureDevice; // address of connected device, stored with each captured line
+    private RetentionEngine retention; // deletes old captured lines
+    private volatile CaptureLog captureLog; // raw chunks, null if not enabled
+    private volatile ReplaySource replaySource; // replaces socket while replaying, received data is not captured again
+
+    // retention limits in shared preferences RETENTION_PREFS, checked shortly after start and then hourly. 0 = no limit
+    private static final String RETENTION_PREFS = "retention";
+    private static final String PREF_MAX_DAYS = "max_days";
+    private static final String PREF_MAX_ROWS = "max_rows";   // per device
+    private static final String PREF_MAX_BYTES = "max_bytes"; // per device
+    private static final long DEFAULT_MAX_DAYS = 30;
+    private static final int DEFAULT_MAX_ROWS = 200000;
+    private static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+    // line store format in shared preferences CAPTURE_PREFS
+    private static final String CAPTURE_PREFS = "capture";
+    private static final String PREF_COMPRESSED = "compressed";
     private boolean connected;
 
     /**
@@ -83,6 +116,53 @@ public class SerialService extends Service implements SerialListener {
         queue1 = new ArrayDeque<>();
         queue2 = new ArrayDeque<>();
         lastRead = new QueueItem(QueueType.Read);
+        requestEngine = new RequestEngine(this::write, mainLooper::post);
+        commandScheduler = new CommandScheduler(new CommandScheduler.Link() {
+            @Override
+            public void write(byte[] data) throws IOException {
+                SerialService.this.write(data);
+            }
+
+            @Override
+            public boolean isBusy() {
+                SerialSocket socket = SerialService.this.socket;
+                return socket != null && socket.isWritePending();
+            }
+        }, mainLooper::post);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DBHelper helper = DBHelper.getInstance(this); // shared with UI, stays open when service is destroyed
+        captureStore = new CaptureStore(helper);
+        captureStore.setCompressed(getSharedPreferences(CAPTURE_PREFS, MODE_PRIVATE).getBoolean(PREF_COMPRESSED, false));
+        retention = new RetentionEngine(helper);
+        applyRetentionLimits();
+        retention.start(30, 60 * 60, TimeUnit.SECONDS);
+    }
+
+    /**
+     * change the retention limits, 0 = no limit. They are kept for the next start and applied right away
+     *
+     * @param maxRows  per device
+     * @param maxBytes per device
+     */
+    public void setRetentionLimits(long maxDays, int maxRows, long maxBytes) {
+        getSharedPreferences(RETENTION_PREFS, MODE_PRIVATE).edit()
+                .putLong(PREF_MAX_DAYS, maxDays)
+                .putInt(PREF_MAX_ROWS, maxRows)
+                .putLong(PREF_MAX_BYTES, maxBytes)
+                .apply();
+        applyRetentionLimits();
+        retention.compactNow();
+    }
+
+    private void applyRetentionLimits() {
+        SharedPreferences prefs = getSharedPreferences(RETENTION_PREFS, MODE_PRIVATE);
+        retention.setMaxAge(prefs.getLong(PREF_MAX_DAYS, DEFAULT_MAX_DAYS), TimeUnit.DAYS);
+        retention.setMaxRows(prefs.getInt(PREF_MAX_ROWS, DEFAULT_MAX_ROWS));
+        retention.setMaxBytes(prefs.getLong(PREF_MAX_BYTES, DEFAULT_MAX_BYTES));
     }
 
     /** Called just before a fragment is destroyed
@@ -93,6 +173,11 @@ public class SerialService extends Service implements SerialListener {
     public void onDestroy() {
         cancelNotification();
         disconnect();
+        requestEngine.shutdown();
+        commandScheduler.shutdown();
+        retention.shutdown();
+        captureStore.close();
+        setRawCapture(false);
         super.onDestroy();
     }
 
@@ -116,21 +201,42 @@ public class SerialService extends Service implements SerialListener {
      * The code would connect the SerialSocket to the Thread.
      */
     public void connect(SerialSocket socket) throws IOException {
+        captureFramer.reset();
+        captureDevice = socket.getAddress();
         socket.connect(this);
         this.socket = socket;
         connected = true;
     }
 
+    /**
+     * instead of a device, feed a recorded raw capture through the same path as received data.
+     * Ends with onSerialIoError(EOFException), or when disconnect() is called
+     */
+    public void replay(ReplaySource source) {
+        disconnect();
+        captureFramer.reset();
+        captureDevice = null;
+        replaySource = source;
+        connected = true;
+        source.start(this);
+    }
+
     /**
      * The code would disconnect the SerialSocket from the Thread.
      */
     public void disconnect() {
         connected = false; // ignore data,errors while disconnecting
         cancelNotification();
+        requestEngine.cancelAll(new IOException("disconnected"));
+        commandScheduler.cancelAll();
         if (socket != null) {
             socket.disconnect();
             socket = null;
         }
+        if (replaySource != null) {
+            replaySource.stop();
+            replaySource = null;
+        }
     }
 
     /**
@@ -139,7 +245,37 @@ public class SerialService extends Service implements SerialListener {
     public void write(byte[] data) throws IOException {
         if (!connected)
             throw new IOException("not connected");
+        if (socket == null)
+            throw new IOException("replay is read only");
         socket.write(data);
+        appendRaw(CaptureLog.TYPE_SEND, data);
+        int length = data.length;
+        while (length > 0 && (data[length - 1] == '\n' || data[length - 1] == '\r'))
+            length--;
+        captureStore.add(captureDevice, RequiredParams.DIRECTION_SEND, new String(data, 0, length, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * command/response requests, callbacks are delivered in main thread
+     */
+    public RequestEngine getRequestEngine() {
+        return requestEngine;
+    }
+
+    /**
+     * periodic polls, cancelled on disconnect
+     */
+    public CommandScheduler getCommandScheduler() {
+        return commandScheduler;
+    }
+
+    /**
+     * run a compiled command batch in background, listener is called in main thread
+     */
+    public MacroRunner runMacro(Macro macro, MacroRunner.Listener listener) {
+        MacroRunner runner = new MacroRunner(macro, this::write, requestEngine, mainLooper::post, listener);
+        runner.start();
+        return runner;
     }
 
     /**
@@ -299,6 +435,71 @@ public class SerialService extends Service implements SerialListener {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * raw capture of all received and sent chunks into segment files, for replay and export.
+     * Unlike the line store it keeps binary data and exact timing
+     */
+    public synchronized void setRawCapture(boolean enabled) {
+        try {
+            if (enabled && captureLog == null)
+                captureLog = new CaptureLog(getCaptureDir());
+            if (!enabled && captureLog != null) {
+                if (captureLog.getDropped() > 0)
+                    Log.w(TAG, "raw capture dropped " + captureLog.getDropped() + " records");
+                captureLog.close();
+                captureLog = null;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "raw capture", e);
+            captureLog = null;
+        }
+    }
+
+    /**
+     * store captured lines in compressed blocks, see BlockStore. Kept for the next start
+     */
+    public void setCompressedCapture(boolean compressed) {
+        getSharedPreferences(CAPTURE_PREFS, MODE_PRIVATE).edit().putBoolean(PREF_COMPRESSED, compressed).apply();
+        captureStore.setCompressed(compressed);
+    }
+
+    public boolean isCompressedCapture() {
+        return getSharedPreferences(CAPTURE_PREFS, MODE_PRIVATE).getBoolean(PREF_COMPRESSED, false);
+    }
+
+    public boolean isRawCapture() {
+        return captureLog != null;
+    }
+
+    /**
+     * the running raw capture, e.g. for Exporter.exportRecords(CaptureLog, OutputStream). null if not enabled
+     */
+    public CaptureLog getRawCapture() {
+        return captureLog;
+    }
+
+    public File getCaptureDir() {
+        return new File(getFilesDir(), "capture");
+    }
+
+    private void appendRaw(int type, byte[] data) {
+        CaptureLog log = captureLog;
+        if (log == null)
+            return;
+        try {
+            log.append(type, data); // only copied, written and synced by the log's own thread
+        } catch (IOException e) {
+            if (captureLog == log) { // not just closed by setRawCapture(false)
+                Log.e(TAG, "raw capture stopped", e);
+                captureLog = null;
+            }
+        }
+    }
+
+    private void onCaptureLine(String line) {
+        captureStore.add(captureDevice, RequiredParams.DIRECTION_RECEIVE, line);
+    }
+
     /**
      * reduce number of UI updates by merging data chunks.
      * Data can arrive at hundred chunks per second, but the UI can only
@@ -309,6 +510,11 @@ public class SerialService extends Service implements SerialListener {
      */
     public void onSerialRead(byte[] data) {
         if (connected) {
+            requestEngine.onData(data); // in socket thread, so responses are matched even while UI is detached
+            if (replaySource == null) {
+                captureFramer.feed(data, this::onCaptureLine);
+                appendRaw(CaptureLog.TYPE_RECEIVE, data);
+            }
             synchronized (this) {
                 if (listener != null) {
                     boolean first;
@@ -124,6 +124,10 @@ import java.util.UUID;
     String getName() {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
+
+    String getAddress() {
+        return device.getAddress();
+    }
     /**
      * The code starts by creating a listener variable.
      * The code then calls disconnect() on the listener, which will stop listening for data and errors from the device.
@@ -446,6 +450,15 @@ import java.util.UUID;
         // continues asynchronously in onCharacteristicWrite()
     }
 
+    /**
+     * true while a write is in flight or queued
+     */
+    boolean isWritePending() {
+        synchronized (writeBuffer) {
+            return writePending || !writeBuffer.isEmpty();
+        }
+    }
+
     /**
      * Callback indicating the result of a characteristic write operation.
      * @param gatt GATT client invoked {@link BluetoothGatt#writeCharacteristic}
@@ -0,0 +1,109 @@
+package com.apogee.basicble.Fragments;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.apogee.basicble.R;
+import com.apogee.basicble.Utils.BluetoothUtil;
+
+/**
+ * scanned devices as RecyclerView list
+ * submitList() computes the difference to the shown list with DiffUtil in a background thread,
+ * then only changed rows are bound. Item ids are the device address, so rows keep their identity.
+ * Contents are the shown name, smoothed rssi and last seen age, so a row is rebound when one of them changes.
+ */
+class DeviceAdapter extends ListAdapter<BluetoothUtil.Device, DeviceAdapter.ViewHolder> {
+
+    interface OnDeviceClickListener {
+        void onDeviceClick(BluetoothUtil.Device device);
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text1;
+        final TextView text2;
+        final TextView text3;
+
+        ViewHolder(View view) {
+            super(view);
+            text1 = view.findViewById(R.id.text1);
+            text2 = view.findViewById(R.id.text2);
+            text3 = view.findViewById(R.id.text3);
+        }
+    }
+
+    private static final DiffUtil.ItemCallback<BluetoothUtil.Device> DIFF = new DiffUtil.ItemCallback<BluetoothUtil.Device>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull BluetoothUtil.Device oldItem, @NonNull BluetoothUtil.Device newItem) {
+            return oldItem.equals(newItem);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull BluetoothUtil.Device oldItem, @NonNull BluetoothUtil.Device newItem) {
+            return (oldItem.getName() == null ? newItem.getName() == null : oldItem.getName().equals(newItem.getName()))
+                    && oldItem.getRssi() == newItem.getRssi()
+                    && oldItem.getLastSeenAge() == newItem.getLastSeenAge();
+        }
+    };
+
+    private final OnDeviceClickListener listener;
+
+    DeviceAdapter(OnDeviceClickListener listener) {
+        super(DIFF);
+        this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return addressToId(getItem(position).getAddress());
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.device_list_item, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION)
+                listener.onDeviceClick(getItem(position));
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        BluetoothUtil.Device device = getItem(position);
+        String deviceName = device.getName();
+        if (deviceName == null || deviceName.isEmpty())
+            deviceName = "<unnamed>";
+        holder.text1.setText(deviceName);
+        holder.text2.setText(device.getAddress());
+        if (device.getRssi() == BluetoothUtil.Device.NO_RSSI) {
+            holder.text3.setVisibility(View.GONE);
+        } else {
+            holder.text3.setVisibility(View.VISIBLE);
+            holder.text3.setText(device.getRssi() + " dBm, seen " + device.getLastSeenAge() + " s ago");
+        }
+    }
+
+    /**
+     * 48 bit mac address "AA:BB:CC:DD:EE:FF" as number
+     */
+    static long addressToId(String address) {
+        long id = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0)
+                id = (id << 4) | digit;
+        }
+        return id;
+    }
+}
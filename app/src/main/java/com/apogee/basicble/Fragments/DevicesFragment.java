@@ -5,6 +5,11 @@ import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -15,13 +20,14 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -29,31 +35,43 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.fragment.app.Fragment;
-import androidx.fragment.app.ListFragment;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.apogee.basicble.R;
 import com.apogee.basicble.Utils.BluetoothUtil;
+import com.apogee.basicble.Utils.ScanBatcher;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 
 /**
  * This Fragment is basically showing the list of available BLE devices according to given particular keyword
  */
-public class DevicesFragment extends ListFragment {
+public class DevicesFragment extends Fragment {
 
     private enum ScanState {NONE, BLE_SCAN, DISCOVERY, DISCOVERY_FINISHED} // Group of constants for the scanState status
     private ScanState scanState = ScanState.NONE; // By default the status of scanState is none
     private static final long BLE_SCAN_PERIOD = 10000; // Discovery time for BLE device
     private final Handler bleScanStopHandler = new Handler();  // Used to update the main thread from background thread
-    private final BluetoothAdapter.LeScanCallback bleScanCallback;  // Callback indication that an BLE device found during a device scan
+    private static final String[] DEVICE_NAMES = {"BLE_Test", "NAVIK"}; // Devices shown in the list have one of these in their name
+    private static final ParcelUuid SERIAL_SERVICE = ParcelUuid.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e"); // Nordic UART service used by SerialSocket
+    // scan filter setting in shared preferences SCAN_PREFS
+    private static final String SCAN_PREFS = "scan";
+    private static final String PREF_ALL_DEVICES = "all_devices";
+    private final ScanCallback bleScanCallback;  // Callback indication that an BLE device found during a device scan
     private final Runnable bleScanStopCallback; // Used to execute code on a concurrent thread
     private final BroadcastReceiver discoveryBroadcastReceiver;  // It occur when the device starts or when message received
     private final IntentFilter discoveryIntentFilter; // Declares the capability of its parent component
     private Menu menu; // Defined because of the navigation Menu
     private BluetoothAdapter bluetoothAdapter; // Represents the local device bluetooth , which allows us to perform fundamental task like discovery
-    private final ArrayList<BluetoothUtil.Device> listItems = new ArrayList<>(); // Used to save the segregated devices , which were found during the scanning
-    private ArrayAdapter<BluetoothUtil.Device> listAdapter;  // Used for connecting the data source with the UI component
+    private static final long SCAN_PUBLISH_INTERVAL = 250; // ms, list is updated at most 4 times per second
+    private ScanBatcher scanBatcher; // Collects the devices found during the scanning and publishes them to the list
+    private DeviceAdapter listAdapter;  // Used for connecting the data source with the UI component
+    private TextView emptyText; // Shown instead of the list while it is empty
+    private CharSequence emptyTextValue = "initializing..."; // Kept while the view is not created
     ActivityResultLauncher<String[]> requestBluetoothPermissionLauncherForStartScan; // To provide an onActivityResult method that is run when the activity ends
     ActivityResultLauncher<String> requestLocationPermissionLauncherForStartScan; // To provide an onActivityResult method that is run when the activity ends
 
@@ -62,11 +80,29 @@ public class DevicesFragment extends ListFragment {
      */
 
     public DevicesFragment() {
-        bleScanCallback = (device, rssi, scanRecord) -> {
-            if (device != null && getActivity() != null) {
-                getActivity().runOnUiThread(() -> {
-                    updateScan(device);
-                });
+        bleScanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                BluetoothDevice device = result.getDevice();
+                String name = result.getScanRecord() != null ? result.getScanRecord().getDeviceName() : null; // no binder call, unlike device.getName()
+                if (device != null)
+                    scanBatcher.add(device, name, result.getRssi(), result.getTimestampNanos() / 1000000); // no UI thread post per advertisement
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results)
+                    onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                if (getActivity() != null) {
+                    getActivity().runOnUiThread(() -> {
+                        stopScan();
+                        setEmptyText("<scan failed, error " + errorCode + ">");
+                    });
+                }
             }
         };
         discoveryBroadcastReceiver = new BroadcastReceiver() {
@@ -75,8 +111,10 @@ public class DevicesFragment extends ListFragment {
             public void onReceive(Context context, Intent intent) {
                 if (BluetoothDevice.ACTION_FOUND.equals(intent.getAction())) {
                     BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC && getActivity() != null) {
-                        getActivity().runOnUiThread(() -> updateScan(device));
+                    if (device.getType() != BluetoothDevice.DEVICE_TYPE_CLASSIC) {
+                        short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                        scanBatcher.add(device, intent.getStringExtra(BluetoothDevice.EXTRA_NAME),
+                                rssi != Short.MIN_VALUE ? rssi : ScanBatcher.RSSI_UNAVAILABLE, SystemClock.elapsedRealtime());
                     }
                 }
                 if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(intent.getAction())) {
@@ -117,39 +155,33 @@ public class DevicesFragment extends ListFragment {
         setHasOptionsMenu(true);
         if (getActivity().getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH))
             bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        listAdapter = new ArrayAdapter<BluetoothUtil.Device>(getActivity(), 0, listItems) {
-            @NonNull
-            @Override
-            public View getView(int position, View view, @NonNull ViewGroup parent) {
-                BluetoothUtil.Device device = listItems.get(position);
-                if (view == null)
-                    view = getActivity().getLayoutInflater().inflate(R.layout.device_list_item, parent, false);
-                TextView text1 = view.findViewById(R.id.text1);
-                TextView text2 = view.findViewById(R.id.text2);
-                String deviceName = device.getName();
-                if (deviceName == null || deviceName.isEmpty())
-                    deviceName = "<unnamed>";
-                text1.setText(deviceName);
-                text2.setText(device.getDevice().getAddress());
-                return view;
-            }
-        };
+        listAdapter = new DeviceAdapter(this::onDeviceClick);
+        scanBatcher = new ScanBatcher(SCAN_PUBLISH_INTERVAL, device -> device.getName() != null && matchesName(device.getName()),
+                new Handler(Looper.getMainLooper())::post, this::onScanSnapshot);
+    }
+
+    /** Called when the fragment is finally destroyed, stopping the scan batcher thread
+     */
+
+    @Override
+    public void onDestroy() {
+        scanBatcher.shutdown();
+        super.onDestroy();
     }
 
-    /** Used for the final initialization
-     *  ( for modifying the element )
-     *  in this we are adding the header whenever we will get and display the expected list
+    /** Creating the view with header, list of devices and the text shown while the list is empty
      */
 
     @Override
-    public void onActivityCreated(Bundle savedInstanceState) {
-        super.onActivityCreated(savedInstanceState);
-        setListAdapter(null);
-        View header = getActivity().getLayoutInflater().inflate(R.layout.device_list_header, null, false);
-        getListView().addHeaderView(header, null, false);
-        setEmptyText("initializing...");
-        ((TextView) getListView().getEmptyView()).setTextSize(18);
-        setListAdapter(listAdapter);
+    public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        View view = inflater.inflate(R.layout.fragment_devices, container, false);
+        RecyclerView list = view.findViewById(R.id.device_list);
+        list.setLayoutManager(new LinearLayoutManager(getActivity()));
+        list.addItemDecoration(new DividerItemDecoration(getActivity(), DividerItemDecoration.VERTICAL));
+        list.setAdapter(listAdapter);
+        emptyText = view.findViewById(R.id.device_list_empty);
+        setEmptyText(emptyTextValue);
+        return view;
     }
 
     /** Initial state of the menu
@@ -167,6 +199,7 @@ public class DevicesFragment extends ListFragment {
         } else if (!bluetoothAdapter.isEnabled()) {
             menu.findItem(R.id.ble_scan).setEnabled(false);
         }
+        menu.findItem(R.id.scan_all_devices).setChecked(isScanAllDevices());
     }
 
     /** Called when the fragment comes from or goes to foreground state
@@ -183,8 +216,7 @@ public class DevicesFragment extends ListFragment {
         } else if (!bluetoothAdapter.isEnabled()) {
             setEmptyText("<bluetooth is disabled>");
             if (menu != null) {
-                listItems.clear();
-                listAdapter.notifyDataSetChanged();
+                scanBatcher.clear();
                 menu.findItem(R.id.ble_scan).setEnabled(false);
             }
         } else {
@@ -213,6 +245,26 @@ public class DevicesFragment extends ListFragment {
     public void onDestroyView() {
         super.onDestroyView();
         menu = null;
+        emptyText = null;
+    }
+
+    /** Text shown while the list is empty, like ListFragment.setEmptyText
+     */
+
+    private void setEmptyText(CharSequence text) {
+        emptyTextValue = text;
+        if (emptyText != null) {
+            emptyText.setText(text);
+            emptyText.setVisibility(listAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    /** Publishing the devices to the list, the adapter computes the changed rows in background.
+     *  Called by scanBatcher in main thread, at most every SCAN_PUBLISH_INTERVAL
+     */
+
+    private void onScanSnapshot(List<BluetoothUtil.Device> devices) {
+        listAdapter.submitList(devices, () -> setEmptyText(emptyTextValue));
     }
 
 
@@ -228,6 +280,11 @@ public class DevicesFragment extends ListFragment {
         } else if (id == R.id.ble_scan_stop) {
             stopScan();
             return true;
+        } else if (id == R.id.scan_all_devices) {
+            boolean all = !isScanAllDevices();
+            getActivity().getSharedPreferences(SCAN_PREFS, Context.MODE_PRIVATE).edit().putBoolean(PREF_ALL_DEVICES, all).apply();
+            item.setChecked(all);
+            return true; // used by the next scan
         } else if (id == R.id.bt_settings) {
             Intent intent = new Intent();
             intent.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
@@ -242,6 +299,7 @@ public class DevicesFragment extends ListFragment {
      * Called to scan for the available BLE devices
      */
 
+    @SuppressLint("MissingPermission")
     private void startScan() {
         if (scanState != ScanState.NONE)
             return;
@@ -280,53 +338,66 @@ public class DevicesFragment extends ListFragment {
             // sometimes the older API returns less results or slower
         }
         scanState = nextScanState;
-        listItems.clear();
-        listAdapter.notifyDataSetChanged();
+        scanBatcher.clear();
+        scanBatcher.start();
         setEmptyText("<scanning...>");
         menu.findItem(R.id.ble_scan).setVisible(false);
         menu.findItem(R.id.ble_scan_stop).setVisible(true);
         if (scanState == ScanState.BLE_SCAN) {
+            BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+            if (scanner == null) { // bluetooth turned off in the meantime
+                stopScan();
+                return;
+            }
             bleScanStopHandler.postDelayed(bleScanStopCallback, BLE_SCAN_PERIOD);
-            new Thread(() -> bluetoothAdapter.startLeScan(null, bleScanCallback), "startLeScan")
+            List<ScanFilter> filters = scanFilters(isScanAllDevices());
+            ScanSettings settings = scanSettings();
+            new Thread(() -> scanner.startScan(filters, settings, bleScanCallback), "startLeScan")
                     .start(); // start async to prevent blocking UI, because startLeScan sometimes take some seconds
         } else {
             bluetoothAdapter.startDiscovery();
         }
     }
 
-    /** After scanning for the devices we are segregating the devices according to -
-     *  particular keywords ...
-     *  After getting the expected Devices we are adding them in the list
+    /** Filters are matched in the bluetooth controller if it supports offloading, else in the bluetooth stack,
+     *  so advertisements of unrelated devices do not reach the app.
+     *  By default only devices advertising the Nordic UART service used by SerialSocket pass, their names are
+     *  then checked by scanBatcher with contains(). A name filter would only match the exact name, but devices
+     *  are named like "NAVIK-1234". For devices that don't advertise the service, the scan_all_devices menu item
+     *  removes the filter, then only the name check remains
      */
 
-    @SuppressLint("MissingPermission")
-    private void updateScan(BluetoothDevice device) {
-        if (scanState == ScanState.NONE)
-            return;
-        BluetoothUtil.Device device2 = new BluetoothUtil.Device(device); // slow getName() only once
-
-        if(device2.getName()!=null) {
-
-            if (!listItems.contains(device2)) {
-
-                if (device2.getName().contains("BLE_Test") || device2.getName().contains("NAVIK")) {
-
-                    listItems.add(device2);
+    private static List<ScanFilter> scanFilters(boolean allDevices) {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (!allDevices)
+            filters.add(new ScanFilter.Builder().setServiceUuid(SERIAL_SERVICE).build());
+        return filters;
+    }
 
-                }
-                listAdapter.notifyDataSetChanged();
+    private boolean isScanAllDevices() {
+        return getActivity().getSharedPreferences(SCAN_PREFS, Context.MODE_PRIVATE).getBoolean(PREF_ALL_DEVICES, false);
+    }
 
-            }
+    /** User waits for the result, so scan with low latency for the short BLE_SCAN_PERIOD
+     *  and report each device as soon as it is seen
+     */
 
-        }
+    private static ScanSettings scanSettings() {
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setReportDelay(0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            builder.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                    .setNumOfMatches(ScanSettings.MATCH_NUM_MAX_ADVERTISEMENT);
+        return builder.build();
+    }
 
-//        int pos = Collections.binarySearch(listItems, device2);
-//
-//
-//        if (pos < 0) {
-//            listItems.add(-pos - 1, device2);
-//            listAdapter.notifyDataSetChanged();
-//        }
+    private static boolean matchesName(String name) {
+        for (String deviceName : DEVICE_NAMES)
+            if (name.contains(deviceName))
+                return true;
+        return false;
     }
 
     /** Called to stop the scanning process and removing all the runnables which are in queue
@@ -345,7 +416,9 @@ public class DevicesFragment extends ListFragment {
         switch (scanState) {
             case BLE_SCAN:
                 bleScanStopHandler.removeCallbacks(bleScanStopCallback);
-                bluetoothAdapter.stopLeScan(bleScanCallback);
+                BluetoothLeScanner scanner = bluetoothAdapter.getBluetoothLeScanner();
+                if (scanner != null) // null if bluetooth is off, then the scan is already stopped
+                    scanner.stopScan(bleScanCallback);
                 break;
             case DISCOVERY:
                 bluetoothAdapter.cancelDiscovery();
@@ -353,6 +426,7 @@ public class DevicesFragment extends ListFragment {
             default:
                 // already canceled
         }
+        scanBatcher.stop(); // devices still pending are published once
         scanState = ScanState.NONE;
 
     }
@@ -362,12 +436,10 @@ public class DevicesFragment extends ListFragment {
      * for the communication..
      */
 
-    @Override
-    public void onListItemClick(@NonNull ListView l, @NonNull View v, int position, long id) {
+    private void onDeviceClick(BluetoothUtil.Device device) {
         stopScan();
-        BluetoothUtil.Device device = listItems.get(position - 1);
         Bundle args = new Bundle();
-        args.putString("device", device.getDevice().getAddress());
+        args.putString("device", device.getAddress());
         Fragment fragment = new TerminalFragment();
         fragment.setArguments(args);
         getFragmentManager().beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
@@ -0,0 +1,138 @@
+package com.apogee.basicble.Fragments;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.ColorInt;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.apogee.basicble.R;
+import com.apogee.basicble.Utils.ScrollbackRing;
+
+/**
+ * terminal scrollback as list of lines
+ * replaces the single TextView, whose relayout cost grows with the total text length.
+ * Lines are kept in a fixed capacity ring and only visible lines are bound,
+ * so appending costs the same after minutes or days of streaming.
+ */
+class TerminalAdapter extends RecyclerView.Adapter<TerminalAdapter.ViewHolder> {
+
+    static final int CAPACITY = 10000;   // lines kept in scrollback
+    static final int MAX_LINE = 1024;    // wrap overlong lines, e.g. binary data without newline
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView text;
+
+        ViewHolder(View view) {
+            super(view);
+            text = view.findViewById(R.id.line_text);
+        }
+    }
+
+    private final ScrollbackRing<SpannableStringBuilder> lines = new ScrollbackRing<>(CAPACITY);
+    private final int defaultColor;
+    private boolean lastLineOpen; // last line not yet terminated by newline
+    private int wrapped;          // lines before the last one that were wrapped at MAX_LINE, i.e. belong to the open line
+
+    TerminalAdapter(@ColorInt int defaultColor) {
+        this.defaultColor = defaultColor;
+    }
+
+    /**
+     * append text, splitting it at newlines into lines
+     *
+     * @param color text color, 0 for default color without span
+     */
+    void append(CharSequence text, @ColorInt int color) {
+        int start = 0;
+        int length = text.length();
+        for (int pos = 0; pos < length; pos++) {
+            if (text.charAt(pos) == '\n') {
+                appendToLastLine(text, start, pos, color);
+                lastLineOpen = false;
+                wrapped = 0;
+                start = pos + 1;
+            }
+        }
+        if (start < length)
+            appendToLastLine(text, start, length, color);
+    }
+
+    /**
+     * remove chars from the end of the unterminated last line, also across lines wrapped at MAX_LINE
+     */
+    void deleteLast(int count) {
+        SpannableStringBuilder line = lastLineOpen ? lines.last() : null;
+        while (line != null && count > 0) {
+            int n = Math.min(count, line.length());
+            line.delete(line.length() - n, line.length());
+            count -= n;
+            if (count > 0 && wrapped > 0 && lines.size() > 1) {
+                lines.removeLast(); // empty now, continue on the wrapped line before
+                notifyItemRemoved(lines.size());
+                wrapped--;
+                line = lines.last();
+            } else {
+                notifyItemChanged(lines.size() - 1);
+                line = null;
+            }
+        }
+    }
+
+    void clear() {
+        lines.clear();
+        lastLineOpen = false;
+        wrapped = 0;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * append to the open line, starting new lines every MAX_LINE chars
+     */
+    private void appendToLastLine(CharSequence text, int start, int end, int color) {
+        do {
+            SpannableStringBuilder line = lastLineOpen ? lines.last() : null;
+            if (line == null || line.length() >= MAX_LINE) {
+                wrapped = line != null ? Math.min(wrapped + 1, lines.size()) : 0;
+                line = new SpannableStringBuilder();
+                if (lines.add(line))
+                    notifyItemRemoved(0);
+                notifyItemInserted(lines.size() - 1);
+                lastLineOpen = true;
+            } else {
+                notifyItemChanged(lines.size() - 1);
+            }
+            int chunkEnd = Math.min(end, start + MAX_LINE - line.length());
+            int from = line.length();
+            line.append(text, start, chunkEnd);
+            if (color != 0 && line.length() > from)
+                line.setSpan(new ForegroundColorSpan(color), from, line.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            start = chunkEnd;
+        } while (start < end);
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.terminal_line_item, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        holder.text.setTextColor(defaultColor); // set as default color to reduce number of spans
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        holder.text.setText(lines.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return lines.size();
+    }
+}
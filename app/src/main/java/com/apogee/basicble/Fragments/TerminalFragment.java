@@ -9,15 +9,14 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
-import android.provider.SyncStateContract;
-import android.text.Editable;
-import android.text.Spannable;
+import android.os.Looper;
 import android.text.SpannableStringBuilder;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
+import android.provider.SyncStateContract;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -26,22 +25,32 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
+import com.apogee.basicble.Capture.Exporter;
 import com.apogee.basicble.CommunicationLibrary.SerialListener;
 import com.apogee.basicble.CommunicationLibrary.SerialService;
 import com.apogee.basicble.CommunicationLibrary.SerialSocket;
 import com.apogee.basicble.R;
 import com.apogee.basicble.SQlite.DBHelper;
 import com.apogee.basicble.SQlite.Model;
+import com.apogee.basicble.SQlite.ResponseDao;
+import com.apogee.basicble.Utils.StreamDecoder;
 import com.apogee.basicble.Utils.TextUtil;
 
+import java.io.OutputStream;
+import java.nio.CharBuffer;
 import java.util.ArrayDeque;
 import java.util.List;
 
@@ -50,15 +59,35 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     private enum Connected { False, Pending, True } // Group of constants
     private String deviceAddress;  // String for saving the device macAddress
     private SerialService service; // Calling the serial service class
-    private TextView receiveText; // Text View for saving the response coming from ble device
+    private RecyclerView receiveList; // List showing the response coming from ble device
+    private TerminalAdapter receiveAdapter; // Scrollback lines, kept across view re-creation
+    private TextView receiveCounter; // Received bytes and lines, shown while rendering is paused
     private TextView sendText; // Text View for send the request ble device
     private TextUtil.HexWatcher hexWatcher; // Text watcher
+    private final TextUtil.HexDumpFormatter hexDump = new TextUtil.HexDumpFormatter(); // Received data in HEX mode
+    private final StreamDecoder utf8 = new StreamDecoder(); // Received data in text mode, keeps characters split over notifications
+    private final SpannableStringBuilder caretBuffer = new SpannableStringBuilder(); // Reused by toCaretString, copied into scrollback
     private Connected connected = Connected.False;
+    private ActivityResultLauncher<String> exportLauncher; // Picks the target file of the CSV export
+    private Exporter exporter; // Running export, null if none
+    private ProgressBar exportProgress; // Shown while exporting, tap to cancel
+    private ResponseDao dao; // Database access off the main thread
+    private ResponseDao.Task firstRowTask; // Loads the row shown in the SQLite section, cancelled with the view
 
     // Boolean values
     private boolean initialStart = true;
     private boolean hexEnabled = false;
     private boolean pendingNewline = false;
+    private boolean renderPaused = false;
+
+    // Received data statistics
+    private static final int PAUSED_TAIL_BYTES = 16 * 1024; // rendered on resume, older data is only counted
+    private static final long COUNTER_UPDATE_INTERVAL = 250; // ms
+    private final ArrayDeque<byte[]> pausedTail = new ArrayDeque<>();
+    private int pausedTailBytes;
+    private long pausedDroppedBytes; // received while paused but older than the tail
+    private long receivedBytes, receivedLines;
+    private long counterUpdateTime;
     private String newline = TextUtil.newline_crlf; // String for new line
 
     /** Initial Creation of the fragment
@@ -71,6 +100,9 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         setHasOptionsMenu(true);
         setRetainInstance(true);
         deviceAddress = getArguments().getString("device");
+        receiveAdapter = new TerminalAdapter(getResources().getColor(R.color.colorRecieveText));
+        exportLauncher = registerForActivityResult(new ActivityResultContracts.CreateDocument("text/csv"), this::export);
+        dao = new ResponseDao(DBHelper.getInstance(getActivity()), new Handler(Looper.getMainLooper())::post);
     }
 
     /** Called just before a fragment is destroyed
@@ -79,6 +111,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     @Override
     public void onDestroy() {
+        if (exporter != null)
+            exporter.cancel();
         if (connected != Connected.False)
             disconnect();
         getActivity().stopService(new Intent(getActivity(), SerialService.class));
@@ -182,9 +216,21 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_terminal, container, false);
-        receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
-        receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
-        receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        receiveList = view.findViewById(R.id.receive_list);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(getActivity());
+        layoutManager.setStackFromEnd(true); // new lines at bottom, like gravity=bottom
+        receiveList.setLayoutManager(layoutManager);
+        receiveList.setItemAnimator(null); // lines are appended at high rate, animations would only cost
+        receiveList.setAdapter(receiveAdapter);
+        receiveCounter = view.findViewById(R.id.receive_counter);
+        receiveCounter.setVisibility(renderPaused ? View.VISIBLE : View.GONE);
+        updateCounter();
+        exportProgress = view.findViewById(R.id.export_progress);
+        exportProgress.setOnClickListener(v -> {
+            if (exporter != null)
+                exporter.cancel();
+        });
+        showExportProgress(0, 0);
 
         sendText = view.findViewById(R.id.send_text);
         hexWatcher = new TextUtil.HexWatcher(sendText);
@@ -193,7 +239,12 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         sendText.setHint(hexEnabled ? "HEX mode" : "");
 
         View sendBtn = view.findViewById(R.id.send_btn);
-        sendBtn.setOnClickListener(v -> send(sendText.getText().toString()));
+        sendBtn.setOnClickListener(v -> {
+            if (hexEnabled)
+                sendHex(sendText.getText());
+            else
+                send(sendText.getText().toString());
+        });
 
 
 
@@ -202,34 +253,159 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
  */
 
         String result = "Raw On";
-        DBHelper db = new DBHelper(getActivity()); //creating obj of handler class
         //creating a result
         Model model = new Model();
         model.setGetResp(result);
-        model.setDate(java.time.LocalDate.now().toString());
-        db.addResult(model);
-
-        List<Model> bmiModelList = db.getAllResult();
+        model.setTimestamp(System.currentTimeMillis());
+        model.setDevice(deviceAddress);
 
         TextView id = view.findViewById(R.id.id);
         TextView date = view.findViewById(R.id.date);
         TextView response = view.findViewById(R.id.response);
         Button sendSQ = view.findViewById(R.id.sendSQ);
 
-        String strId = String.valueOf(bmiModelList.get(0).getId());
-        String strDate = String.valueOf(bmiModelList.get(0).getDate());
-        String strResponse = String.valueOf(bmiModelList.get(0).getGetResp());
-
-        id.setText(strId);
-        date.setText(strDate);
-        response.setText(strResponse);
+        // insert and query in database thread, views are filled when done
+        firstRowTask = dao.execute(helper -> {
+            helper.addResult(model);
+            return helper.getResultPage(0, 1); // only the first row is shown
+        }, new ResponseDao.Callback<List<Model>>() {
+            @Override
+            public void onResult(List<Model> bmiModelList) {
+                String strId = String.valueOf(bmiModelList.get(0).getId());
+                String strDate = String.valueOf(bmiModelList.get(0).getDate());
+                String strResponse = String.valueOf(bmiModelList.get(0).getGetResp());
+
+                id.setText(strId);
+                date.setText(strDate);
+                response.setText(strResponse);
+
+                sendSQ.setOnClickListener(view1 -> send(strResponse));
+            }
 
-        sendSQ.setOnClickListener(view1 -> send(strResponse));
+            @Override
+            public void onError(Exception e) {
+                Toast.makeText(getActivity(), "database: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
 
 
             return view;
     }
 
+    /** Called when the view is removed
+     *  Pending database queries are cancelled, their results are not needed anymore
+     */
+
+    @Override
+    public void onDestroyView() {
+        if (firstRowTask != null)
+            firstRowTask.cancel();
+        exportProgress = null; // export continues, progress is shown again by the new view
+        super.onDestroyView();
+    }
+
+    /** Initial state of the menu
+     */
+
+    @Override
+    public void onCreateOptionsMenu(@NonNull Menu menu, @NonNull MenuInflater inflater) {
+        inflater.inflate(R.menu.menu_terminal, menu);
+        menu.findItem(R.id.render_pause).setTitle(renderPaused ? "RESUME" : "PAUSE");
+        menu.findItem(R.id.hex).setChecked(hexEnabled);
+    }
+
+    /** State of menu items kept by the service, which may be bound after the menu was created
+     */
+
+    @Override
+    public void onPrepareOptionsMenu(@NonNull Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        MenuItem compressed = menu.findItem(R.id.compressed_capture);
+        compressed.setEnabled(service != null);
+        compressed.setChecked(service != null && service.isCompressedCapture());
+    }
+
+    /** Used to perform the action after clicking on the menu items
+     */
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.render_pause) {
+            setRenderPaused(!renderPaused);
+            item.setTitle(renderPaused ? "RESUME" : "PAUSE");
+            return true;
+        } else if (id == R.id.export) {
+            exportLauncher.launch("capture.csv");
+            return true;
+        } else if (id == R.id.hex) {
+            hexEnabled = !hexEnabled;
+            sendText.setText("");
+            hexWatcher.enable(hexEnabled);
+            sendText.setHint(hexEnabled ? "HEX mode" : "");
+            item.setChecked(hexEnabled);
+            hexDump.reset();
+            utf8.reset();
+            pendingNewline = false;
+            return true;
+        } else if (id == R.id.compressed_capture) {
+            if (service == null)
+                return true;
+            // saves space. Compressed lines are exported, searched by substring and limited by retention like rows
+            service.setCompressedCapture(!service.isCompressedCapture());
+            item.setChecked(service.isCompressedCapture());
+            return true;
+        } else {
+            return super.onOptionsItemSelected(item);
+        }
+    }
+
+    /**
+     * Export the captured lines of this device as CSV in background, with progress bar
+     */
+    private void export(Uri uri) {
+        if (uri == null)
+            return;
+        Context context = getActivity().getApplicationContext();
+        if (exporter != null) {
+            Toast.makeText(context, "export already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Handler mainLooper = new Handler(Looper.getMainLooper());
+        Exporter exporter = new Exporter(Exporter.Format.CSV, false);
+        exporter.setDevice(deviceAddress);
+        exporter.setProgressListener((done, total) -> mainLooper.post(() -> showExportProgress(done, total)));
+        this.exporter = exporter;
+        showExportProgress(0, 0);
+        new Thread(() -> {
+            String result;
+            try (OutputStream out = context.getContentResolver().openOutputStream(uri)) {
+                long lines = exporter.exportLines(DBHelper.getInstance(context), out);
+                result = "exported " + lines + " lines";
+            } catch (Exception e) {
+                result = "export failed: " + e.getMessage();
+            }
+            String message = result;
+            mainLooper.post(() -> {
+                this.exporter = null;
+                showExportProgress(0, 0);
+                Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+            });
+        }, "Export").start();
+    }
+
+    /**
+     * @param total 0 if not known yet
+     */
+    private void showExportProgress(long done, long total) {
+        if (exportProgress == null)
+            return;
+        exportProgress.setVisibility(exporter != null ? View.VISIBLE : View.GONE);
+        exportProgress.setIndeterminate(total <= 0);
+        if (total > 0)
+            exportProgress.setProgress((int) (Math.min(done, total) * exportProgress.getMax() / total));
+    }
+
     /**
      * Called for connecting the device using mac address
      */
@@ -239,6 +415,8 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
             BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
             status("connecting...");
+            utf8.reset();
+            pendingNewline = false;
             connected = Connected.Pending;
             SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
             service.connect(socket);
@@ -258,7 +436,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     /**
      * Called to send the request to ble device
-     * using the SpannableStringBuilder for the color and nextLine att.
+     * the sent text is also shown in the scrollback with send color.
      */
 
     private void send(String str) {
@@ -267,15 +445,26 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             return;
         }
         try {
-            String msg;
-            byte[] data;
+            byte[] data = (str + newline).getBytes();
+            append(str + '\n', getResources().getColor(R.color.colorSendText));
+            service.write(data);
+        } catch (Exception e) {
+            onSerialIoError(e);
+        }
+    }
 
-                msg = str;
-                data = (str + newline).getBytes();
+    /**
+     * Called to send hex input, decoded directly from the edit text without String copy
+     */
 
-            SpannableStringBuilder spn = new SpannableStringBuilder(msg + '\n');
-            spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            receiveText.append(spn);
+    private void sendHex(CharSequence hex) {
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        try {
+            byte[] data = TextUtil.fromHexString(hex);
+            append(TextUtil.toHexString(data) + '\n', getResources().getColor(R.color.colorSendText));
             service.write(data);
         } catch (Exception e) {
             onSerialIoError(e);
@@ -284,33 +473,44 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     /**
      * Called to receive the response to ble device
-     * using the SpannableStringBuilder for the color and nextLine att.
+     * text is appended to the scrollback lines, CR directly before LF is not shown.
      */
 
     private void receive(@NonNull ArrayDeque<byte[]> datas) {
-        SpannableStringBuilder spn = new SpannableStringBuilder();
+        boolean atBottom = isAtBottom();
         for (byte[] data : datas) {
-
-                String msg = new String(data);
-                if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
-                    // don't show CR as ^M if directly before LF
-                    msg = msg.replace(TextUtil.newline_crlf, "\n");
-                    // special handling if CR and LF come in separate fragments
-                    if (pendingNewline && msg.charAt(0) == '\n') {
-                        if(spn.length() >= 2) {
-                            spn.delete(spn.length() - 2, spn.length());
-                        } else {
-                            Editable edt = receiveText.getEditableText();
-                            if (edt != null && edt.length() >= 2)
-                                edt.delete(edt.length() - 2, edt.length());
-                        }
-
-                    pendingNewline = msg.charAt(msg.length() - 1) == '\r';
-                }
-                spn.append(TextUtil.toCaretString(msg, newline.length() != 0));
+            if (hexEnabled) {
+                receiveAdapter.append(hexDump.format(data, 0, data.length), 0);
+                continue;
+            }
+            CharBuffer msg = utf8.decode(data);
+            if (newline.equals(TextUtil.newline_crlf) && msg.length() > 0) {
+                // don't show CR as ^M if directly before LF
+                dropCrBeforeLf(msg);
+                // special handling if CR and LF come in separate fragments
+                if (pendingNewline && msg.charAt(0) == '\n')
+                    receiveAdapter.deleteLast(2);
+                pendingNewline = msg.charAt(msg.length() - 1) == '\r';
             }
+            receiveAdapter.append(TextUtil.toCaretString(msg, newline.length() != 0, caretBuffer), 0);
         }
-        receiveText.append(spn);
+        if (atBottom)
+            scrollToBottom();
+    }
+
+    /**
+     * remove CR of each CRLF in place, the decoder buffer is array backed and starts at 0
+     */
+    private static void dropCrBeforeLf(CharBuffer buf) {
+        char[] chars = buf.array();
+        int end = buf.limit();
+        int to = 0;
+        for (int from = 0; from < end; from++) {
+            if (chars[from] == '\r' && from + 1 < end && chars[from + 1] == '\n')
+                continue;
+            chars[to++] = chars[from];
+        }
+        buf.limit(to);
     }
 
     /**
@@ -318,9 +518,91 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
      */
 
     private void status(String str) {
-        SpannableStringBuilder spn = new SpannableStringBuilder(str + '\n');
-        spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        receiveText.append(spn);
+        append(str + '\n', getResources().getColor(R.color.colorStatusText));
+    }
+
+    /**
+     * append colored text and keep following the output if the list was scrolled to the end
+     */
+    private void append(String str, int color) {
+        boolean atBottom = isAtBottom();
+        receiveAdapter.append(str, color);
+        if (atBottom)
+            scrollToBottom();
+    }
+
+    /**
+     * While paused, received data is only counted and the last PAUSED_TAIL_BYTES are kept.
+     * On resume only this tail is rendered.
+     */
+    private void setRenderPaused(boolean paused) {
+        if (paused == renderPaused)
+            return;
+        renderPaused = paused;
+        if (receiveCounter != null)
+            receiveCounter.setVisibility(paused ? View.VISIBLE : View.GONE);
+        updateCounter();
+        if (!paused && !pausedTail.isEmpty()) {
+            ArrayDeque<byte[]> tail = new ArrayDeque<>(pausedTail);
+            int tailBytes = pausedTailBytes;
+            long droppedBytes = pausedDroppedBytes;
+            pausedTail.clear();
+            pausedTailBytes = 0;
+            pausedDroppedBytes = 0;
+            pendingNewline = false;
+            if (droppedBytes > 0) {
+                utf8.reset(); // a character split at the dropped data would corrupt the first chars of the tail
+                status("... rendering resumed, showing last " + tailBytes + " of " + (tailBytes + droppedBytes) + " bytes");
+            } else {
+                status("... rendering resumed");
+            }
+            receive(tail);
+            scrollToBottom();
+        }
+    }
+
+    /**
+     * count received data, then render it or keep it for resume
+     */
+    private void onReceived(@NonNull ArrayDeque<byte[]> datas) {
+        for (byte[] data : datas) {
+            receivedBytes += data.length;
+            for (byte b : data)
+                if (b == '\n')
+                    receivedLines++;
+        }
+        long now = System.currentTimeMillis();
+        if (renderPaused && now - counterUpdateTime >= COUNTER_UPDATE_INTERVAL) {
+            counterUpdateTime = now;
+            updateCounter();
+        }
+        if (renderPaused) {
+            for (byte[] data : datas) {
+                pausedTail.add(data);
+                pausedTailBytes += data.length;
+            }
+            while (pausedTailBytes > PAUSED_TAIL_BYTES && pausedTail.size() > 1) {
+                int length = pausedTail.poll().length;
+                pausedTailBytes -= length;
+                pausedDroppedBytes += length;
+            }
+        } else {
+            receive(datas);
+        }
+    }
+
+    private void updateCounter() {
+        if (receiveCounter != null)
+            receiveCounter.setText("paused: " + receivedBytes + " bytes, " + receivedLines + " lines received");
+    }
+
+    private boolean isAtBottom() {
+        return receiveList == null || !receiveList.canScrollVertically(1);
+    }
+
+    private void scrollToBottom() {
+        if (receiveList != null && receiveAdapter.getItemCount() > 0)
+            receiveList.scrollToPosition(receiveAdapter.getItemCount() - 1);
     }
 
     /**
@@ -342,11 +624,11 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     public void onSerialRead(byte[] data) {
         ArrayDeque<byte[]> datas = new ArrayDeque<>();
         datas.add(data);
-        receive(datas);
+        onReceived(datas);
     }
 
     public void onSerialRead(ArrayDeque<byte[]> datas) {
-        receive(datas);
+        onReceived(datas);
     }
 
     @Override
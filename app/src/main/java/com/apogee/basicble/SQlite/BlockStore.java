@@ -0,0 +1,346 @@
+package com.apogee.basicble.SQlite;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * lines stored in deflate compressed blocks instead of one row per line
+ * - lines of one device are collected until BLOCK_SIZE uncompressed bytes, then written as one row
+ *   with device, first and last timestamp, line count and sizes. These columns are the block index
+ * - in a block each line is: time delta to previous line (varint), direction, length (varint), UTF-8 text
+ * - queries select blocks by the index and inflate only those, one at a time
+ * Lines in a block that is not yet written are not visible to queries. Blocks are not part of the
+ * full text index, ResponseSearch scans the newest blocks instead. Exporter and RetentionEngine include blocks.
+ * One instance per DBHelper, see DBHelper.getBlockStore(). Writing is done by CaptureStore in its writer thread,
+ * inside its transactions: a written block is only dropped from memory on commit(), rollback() restores the state of begin()
+ */
+public class BlockStore {
+
+    static final int BLOCK_SIZE = 64 * 1024;     // uncompressed bytes per block
+    private static final int MAX_LINES = 0xffff; // per block, line number is in the low 16 bits of the id
+
+    /**
+     * lines of one device not yet written, only used in the writer thread
+     */
+    private static class Builder {
+        byte[] buffer = new byte[BLOCK_SIZE + 1024];
+        int size;
+        int count;
+        long firstTime;
+        long lastTime;
+        long openedAt; // System.currentTimeMillis() of first line
+        int markSize;  // state at begin()
+        int markCount;
+        long markLastTime;
+
+        void add(long time, int direction, String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            if (count == 0) {
+                firstTime = lastTime = time;
+                openedAt = System.currentTimeMillis();
+            }
+            ensure(10 + 1 + 5 + bytes.length);
+            size = putVarLong(buffer, size, zigZag(time - lastTime));
+            buffer[size++] = (byte) direction;
+            size = putVarLong(buffer, size, bytes.length);
+            System.arraycopy(bytes, 0, buffer, size, bytes.length);
+            size += bytes.length;
+            lastTime = time;
+            count++;
+        }
+
+        boolean isFull() {
+            return size >= BLOCK_SIZE || count >= MAX_LINES;
+        }
+
+        void mark() {
+            markSize = size;
+            markCount = count;
+            markLastTime = lastTime;
+        }
+
+        void reset() {
+            size = markSize;
+            count = markCount;
+            lastTime = markLastTime;
+        }
+
+        private void ensure(int more) {
+            if (size + more > buffer.length) {
+                byte[] bigger = new byte[Math.max(2 * buffer.length, size + more)];
+                System.arraycopy(buffer, 0, bigger, 0, size);
+                buffer = bigger;
+            }
+        }
+    }
+
+    private final DBHelper helper;
+    // writer thread
+    private final Map<String, Builder> open = new HashMap<>(); // key: device, may be null
+    private final List<String> writtenDevices = new ArrayList<>(); // blocks written in current transaction, oldest first
+    private final List<Builder> written = new ArrayList<>();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private byte[] compressed = new byte[BLOCK_SIZE];
+    private SQLiteStatement insert;
+    // queries
+    private final Inflater inflater = new Inflater();
+    private byte[] inflated = new byte[BLOCK_SIZE + 1024];
+
+    public BlockStore(DBHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * transaction started, remember the lines collected so far
+     */
+    void begin() {
+        for (Builder builder : open.values())
+            builder.mark();
+    }
+
+    /**
+     * transaction committed, the written blocks are in the database now
+     */
+    void commit() {
+        writtenDevices.clear();
+        written.clear();
+    }
+
+    /**
+     * transaction rolled back: put written blocks back and drop the lines added since begin(),
+     * the caller reports those as lost
+     */
+    void rollback() {
+        for (int i = written.size() - 1; i >= 0; i--)
+            open.put(writtenDevices.get(i), written.get(i)); // oldest block of a device last, it has the lines from before begin()
+        commit();
+        for (Iterator<Builder> it = open.values().iterator(); it.hasNext(); ) {
+            Builder builder = it.next();
+            builder.reset();
+            if (builder.count == 0)
+                it.remove();
+        }
+    }
+
+    /**
+     * add a line, writes the block of this device if full. Called in writer thread inside a transaction
+     */
+    void add(SQLiteDatabase db, long time, String device, int direction, String text) {
+        Builder builder = open.get(device);
+        if (builder == null) {
+            builder = new Builder();
+            open.put(device, builder);
+        }
+        builder.add(time, direction, text == null ? "" : text);
+        if (builder.isFull()) {
+            write(db, device, builder);
+            open.remove(device);
+        }
+    }
+
+    /**
+     * write blocks with lines older than maxAge ms, e.g. when the device went quiet
+     */
+    void flush(SQLiteDatabase db, long maxAge) {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, Builder>> it = open.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Builder> entry = it.next();
+            Builder builder = entry.getValue();
+            boolean due = builder.count > 0 && now - builder.openedAt >= maxAge;
+            if (due)
+                write(db, entry.getKey(), builder);
+            if (due || builder.count == 0)
+                it.remove(); // a device no longer sending gets a new buffer if it sends again
+        }
+    }
+
+    boolean hasOpenBlocks() {
+        return !open.isEmpty();
+    }
+
+    /**
+     * writer thread stopped. The deflater is kept, a later CaptureStore writes with the same instance
+     */
+    void close() {
+        if (insert != null)
+            insert.close();
+        insert = null;
+    }
+
+    private void write(SQLiteDatabase db, String device, Builder builder) {
+        deflater.reset();
+        deflater.setInput(builder.buffer, 0, builder.size);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                byte[] bigger = new byte[2 * compressed.length];
+                System.arraycopy(compressed, 0, bigger, 0, length);
+                compressed = bigger;
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        if (insert == null)
+            insert = db.compileStatement("INSERT INTO " + RequiredParams.BLOCK_TABLE_NAME + " ("
+                    + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_FIRST_TIMESTAMP + ", " + RequiredParams.KEY_LAST_TIMESTAMP + ", "
+                    + RequiredParams.KEY_COUNT + ", " + RequiredParams.KEY_RAW_SIZE + ", " + RequiredParams.KEY_DATA + ") VALUES (?, ?, ?, ?, ?, ?)");
+        if (device != null)
+            insert.bindString(1, device);
+        else
+            insert.bindNull(1);
+        insert.bindLong(2, builder.firstTime);
+        insert.bindLong(3, builder.lastTime);
+        insert.bindLong(4, builder.count);
+        insert.bindLong(5, builder.size);
+        byte[] data = new byte[length];
+        System.arraycopy(compressed, 0, data, 0, length);
+        insert.bindBlob(6, data);
+        insert.executeInsert();
+        writtenDevices.add(device); // kept until commit(), removed from open by the caller
+        written.add(builder);
+    }
+
+    /**
+     * lines with fromTime <= timestamp < toTime, block by block, i.e. in time order per device.
+     * id passed to the callback is (block id << 16) + line number in block.
+     * Blocking, call from a background thread
+     *
+     * @param device null for all devices
+     * @return number of lines passed to callback
+     */
+    public int queryTimeRange(String device, long fromTime, long toTime, DBHelper.RowCallback callback) {
+        String where = RequiredParams.KEY_LAST_TIMESTAMP + " >= ? AND " + RequiredParams.KEY_FIRST_TIMESTAMP + " < ?";
+        String[] args = {Long.toString(fromTime), Long.toString(toTime)};
+        if (device != null) {
+            where = RequiredParams.KEY_DEVICE + " = ? AND " + where;
+            args = new String[]{device, args[0], args[1]};
+        }
+        return query(where, args, RequiredParams.KEY_FIRST_TIMESTAMP + ", " + RequiredParams.KEY_ID, fromTime, toTime, callback);
+    }
+
+    /**
+     * all lines of the newest maxBlocks blocks, newest block first, lines in a block oldest first
+     *
+     * @param device null for all devices
+     * @return number of lines passed to callback
+     */
+    public int queryLatest(String device, int maxBlocks, DBHelper.RowCallback callback) {
+        String where = device != null ? RequiredParams.KEY_DEVICE + " = ?" : "1";
+        String[] args = device != null ? new String[]{device} : null;
+        return query(where, args, RequiredParams.KEY_LAST_TIMESTAMP + " DESC, " + RequiredParams.KEY_ID + " DESC LIMIT " + maxBlocks,
+                Long.MIN_VALUE, Long.MAX_VALUE, callback);
+    }
+
+    /**
+     * lines in blocks overlapping the time range, read from the block index without inflating.
+     * Includes lines of the first and last block outside the range, so only an estimate, e.g. for progress
+     *
+     * @param device null for all devices
+     */
+    public long countTimeRange(String device, long fromTime, long toTime) {
+        String where = RequiredParams.KEY_LAST_TIMESTAMP + " >= ? AND " + RequiredParams.KEY_FIRST_TIMESTAMP + " < ?";
+        String[] args = {Long.toString(fromTime), Long.toString(toTime)};
+        if (device != null) {
+            where = RequiredParams.KEY_DEVICE + " = ? AND " + where;
+            args = new String[]{device, args[0], args[1]};
+        }
+        return DatabaseUtils.longForQuery(helper.getReadableDatabase(), "SELECT IFNULL(SUM(" + RequiredParams.KEY_COUNT + "), 0) FROM "
+                + RequiredParams.BLOCK_TABLE_NAME + " WHERE " + where, args);
+    }
+
+    private int query(String where, String[] args, String orderBy, long fromTime, long toTime, DBHelper.RowCallback callback) {
+        String select = "SELECT " + RequiredParams.KEY_ID + ", " + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_FIRST_TIMESTAMP + ", "
+                + RequiredParams.KEY_COUNT + ", " + RequiredParams.KEY_RAW_SIZE + ", " + RequiredParams.KEY_DATA
+                + " FROM " + RequiredParams.BLOCK_TABLE_NAME + " WHERE " + where + " ORDER BY " + orderBy;
+        int total = 0;
+        SQLiteDatabase db = helper.getReadableDatabase();
+        try (Cursor cursor = db.rawQuery(select, args)) {
+            while (cursor.moveToNext()) {
+                int count = decode(cursor.getLong(0), cursor.getString(1), cursor.getLong(2), cursor.getInt(3),
+                        cursor.getInt(4), cursor.getBlob(5), fromTime, toTime, callback);
+                if (count < 0) {
+                    total -= count + 1;
+                    break;
+                }
+                total += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupt block", e);
+        }
+        return total;
+    }
+
+    /**
+     * @return lines passed to callback, -1 - lines if callback returned false
+     */
+    private synchronized int decode(long blockId, String device, long time, int count, int rawSize, byte[] data,
+                                    long fromTime, long toTime, DBHelper.RowCallback callback) throws DataFormatException {
+        if (inflated.length < rawSize)
+            inflated = new byte[rawSize];
+        inflater.reset();
+        inflater.setInput(data);
+        int length = 0;
+        while (length < rawSize && !inflater.finished()) {
+            int n = inflater.inflate(inflated, length, rawSize - length);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                throw new DataFormatException("truncated block");
+            length += n;
+        }
+        int[] pos = {0};
+        int passed = 0;
+        for (int line = 0; line < count; line++) {
+            time += unZigZag(getVarLong(inflated, pos));
+            int direction = inflated[pos[0]++];
+            int size = (int) getVarLong(inflated, pos);
+            if (time >= toTime)
+                break;
+            if (time >= fromTime) {
+                passed++;
+                String text = new String(inflated, pos[0], size, StandardCharsets.UTF_8);
+                if (!callback.onRow((blockId << 16) + line, time, device, direction, text))
+                    return -1 - passed;
+            }
+            pos[0] += size;
+        }
+        return passed;
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int putVarLong(byte[] buffer, int pos, long v) {
+        while ((v & ~0x7fL) != 0) {
+            buffer[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        buffer[pos++] = (byte) v;
+        return pos;
+    }
+
+    private static long getVarLong(byte[] buffer, int[] pos) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer[pos[0]++];
+            v |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return v;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.apogee.basicble.SQlite;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * persist received and sent lines without blocking the caller
+ * - one long lived connection in WAL mode, insert statement compiled once. The database is opened
+ *   (and migrated) in the writer thread, so creating the store in onCreate does not touch the disk
+ * - add() only queues, a writer thread inserts rows in transactions of up to
+ *   MAX_BATCH rows or FLUSH_INTERVAL ms, whichever comes first
+ * - the queue holds at most MAX_QUEUE rows. While it is full new lines are dropped and counted,
+ *   the writer logs the count. add() never blocks the socket thread
+ * - close() waits at most CLOSE_TIMEOUT ms for the writer, it is called on the main thread.
+ *   A writer still busy after that finishes in the background, the next CaptureStore waits for it
+ * - with setCompressed(true) lines go to compressed blocks in BlockStore instead,
+ *   a block is written when full or BLOCK_MAX_AGE ms after its first line
+ * - while the queue is empty, rows from before the full text index are indexed INDEX_BATCH at a time
+ */
+public class CaptureStore {
+
+    private static final String TAG = "CaptureStore";
+    private static final int MAX_BATCH = 256;
+    private static final long FLUSH_INTERVAL = 500; // ms
+    private static final long BLOCK_MAX_AGE = 60 * 1000; // ms, lines lost on crash / not yet visible
+    private static final int INDEX_BATCH = 1000; // rows per DBHelper.indexPending() transaction
+    private static final int MAX_QUEUE = 64 * MAX_BATCH; // rows
+    private static final long CLOSE_TIMEOUT = 1000; // ms
+
+    private static Thread previousWriter; // of the last CaptureStore, guarded by CaptureStore.class
+
+    private static class Row {
+        final long time;
+        final String device;
+        final int direction;
+        final String text;
+
+        Row(long time, String device, int direction, String text) {
+            this.time = time;
+            this.device = device;
+            this.direction = direction;
+            this.text = text;
+        }
+    }
+
+    private final DBHelper helper;
+    private SQLiteDatabase db;      // writer thread only
+    private SQLiteStatement insert; // writer thread only
+    private final LinkedBlockingQueue<Row> queue = new LinkedBlockingQueue<>(MAX_QUEUE);
+    private final AtomicInteger dropped = new AtomicInteger(); // rows not queued since last logged
+    private final Thread writer;
+    private final Thread previous; // writer of the previous CaptureStore, may still be writing
+    private final BlockStore blocks;
+    private volatile boolean compressed;
+    private volatile boolean closed;
+
+    public CaptureStore(DBHelper helper) {
+        this.helper = helper;
+        blocks = helper.getBlockStore();
+        writer = new Thread(this::run, TAG);
+        writer.setPriority(Thread.NORM_PRIORITY - 1);
+        synchronized (CaptureStore.class) {
+            previous = previousWriter;
+            previousWriter = writer;
+        }
+        writer.start();
+    }
+
+    /**
+     * queue a line for insert, can be called from any thread. Dropped if the queue is full
+     *
+     * @param device    address, null if unknown
+     * @param direction RequiredParams.DIRECTION_*
+     */
+    public void add(String device, int direction, String text) {
+        if (!closed && !queue.offer(new Row(System.currentTimeMillis(), device, direction, text)))
+            dropped.incrementAndGet();
+    }
+
+    /**
+     * store lines compressed in blocks instead of one row per line.
+     * DBHelper queries only return rows, compressed lines are read with getBlockStore()
+     */
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public BlockStore getBlockStore() {
+        return blocks;
+    }
+
+    /**
+     * write queued rows, then stop the writer thread. Returns after CLOSE_TIMEOUT ms at the latest,
+     * rows not written by then are logged and written in the background, they are lost if the process ends first
+     */
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(CLOSE_TIMEOUT);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive())
+            Log.w(TAG, "writer still busy after " + CLOSE_TIMEOUT + " ms, " + queue.size() + " rows not written yet");
+    }
+
+    private void run() {
+        if (previous != null)
+            awaitWriter(previous); // BlockStore and the transaction have one writer at a time
+        try {
+            db = helper.getWritableDatabase();
+            insert = db.compileStatement("INSERT INTO " + RequiredParams.TABLE_NAME + " ("
+                    + RequiredParams.KEY_TIMESTAMP + ", " + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_DIRECTION + ", "
+                    + RequiredParams.KEY_SERVER_RESPONSE + ") VALUES (?, ?, ?, ?)");
+        } catch (Exception e) {
+            Log.e(TAG, "database not available, capture disabled", e);
+            closed = true;
+            queue.clear();
+            return;
+        }
+        List<Row> batch = new ArrayList<>(MAX_BATCH);
+        boolean indexPending = true;
+        while (true) {
+            try {
+                // wake up while blocks are open, to write them after BLOCK_MAX_AGE even without new lines.
+                // Don't wait at all while there are rows to index
+                Row first = indexPending && !closed ? queue.poll()
+                        : blocks.hasOpenBlocks() ? queue.poll(FLUSH_INTERVAL, TimeUnit.MILLISECONDS) : queue.take();
+                if (first != null)
+                    batch.add(first);
+                long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+                while (first != null && batch.size() < MAX_BATCH) {
+                    queue.drainTo(batch, MAX_BATCH - batch.size());
+                    long wait = deadline - System.currentTimeMillis();
+                    if (batch.size() >= MAX_BATCH || wait <= 0)
+                        break;
+                    Row next = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (closed)
+                    break;
+            }
+            write(batch, false);
+            batch.clear();
+            logDropped();
+            if (indexPending && queue.isEmpty())
+                indexPending = indexPending();
+        }
+        queue.drainTo(batch);
+        write(batch, true);
+        logDropped();
+        insert.close();
+        blocks.close();
+    }
+
+    /**
+     * join without giving up on interrupt, which is only used by close(). The interrupt is kept for run()
+     */
+    private static void awaitWriter(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void logDropped() {
+        int count = dropped.getAndSet(0);
+        if (count > 0)
+            Log.w(TAG, "queue full, " + count + " rows lost");
+    }
+
+    /**
+     * @return true if more rows are left
+     */
+    private boolean indexPending() {
+        try {
+            return helper.indexPending(db, INDEX_BATCH);
+        } catch (Exception e) {
+            Log.e(TAG, "full text indexing failed", e);
+            return false;
+        }
+    }
+
+    private void write(List<Row> batch, boolean closing) {
+        boolean openBlocks = blocks.hasOpenBlocks();
+        if (batch.isEmpty() && !openBlocks)
+            return;
+        boolean compressed = this.compressed;
+        try {
+            blocks.begin();
+            db.beginTransactionNonExclusive();
+            try {
+                for (Row row : batch) {
+                    if (compressed) {
+                        blocks.add(db, row.time, row.device, row.direction, row.text);
+                        continue;
+                    }
+                    insert.bindLong(1, row.time);
+                    if (row.device != null)
+                        insert.bindString(2, row.device);
+                    else
+                        insert.bindNull(2);
+                    insert.bindLong(3, row.direction);
+                    insert.bindString(4, row.text);
+                    insert.executeInsert();
+                }
+                if (openBlocks || compressed)
+                    blocks.flush(db, closing ? 0 : BLOCK_MAX_AGE);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            blocks.commit();
+        } catch (Exception e) {
+            blocks.rollback(); // blocks written in this transaction are collected again
+            Log.e(TAG, "insert failed, " + batch.size() + " rows lost", e);
+        }
+    }
+}
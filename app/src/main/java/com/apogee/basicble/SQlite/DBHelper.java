@@ -3,9 +3,9 @@ package com.apogee.basicble.SQlite;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.util.Log;
 
 
 import java.util.ArrayList;
@@ -13,24 +13,147 @@ import java.util.List;
 
 public class DBHelper extends SQLiteOpenHelper {
 
+    /**
+     * receives rows of a paged query one by one, return false to stop early
+     */
+    public interface RowCallback {
+        boolean onRow(long id, long timestamp, String device, int direction, String response);
+    }
+
+    private static DBHelper instance;
+
+    /**
+     * the process wide instance. The database is opened on first use and never closed,
+     * so schema check, prepared statements and page cache are paid for once per process
+     * @param context any context, only its application context is kept
+     */
+    public static synchronized DBHelper getInstance(Context context) {
+        if (instance == null)
+            instance = new DBHelper(context.getApplicationContext());
+        return instance;
+    }
+
     /**
      * @param context
      * constructor
      */
-    public DBHelper(Context context) {
+    private DBHelper(Context context) {
         super(context, RequiredParams.DB_NAME, null, RequiredParams.DB_VERSION);
+        setWriteAheadLoggingEnabled(true); // capture writer and UI readers don't block each other
+
+    }
+
+    /**
+     * Called before onCreate / onUpgrade. auto_vacuum only takes effect in a new, empty file,
+     * existing files are rebuilt once in onOpen after an upgrade
+     * @param db The database.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL"); // RetentionEngine releases deleted pages with incremental_vacuum
+    }
+
+    /**
+     * Called each time the database is opened, i.e. once per process
+     * @param db The database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        db.setMaxSqlCacheSize(SQL_CACHE_SIZE);
+        if (vacuumOnOpen) {
+            // not possible inside the onUpgrade transaction. Runs on the thread opening the database
+            // (the capture writer), i.e. once at migration time and never while capturing
+            vacuumOnOpen = false;
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL)
+                db.execSQL("VACUUM");
+        }
+    }
 
+    static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int SQL_CACHE_SIZE = 64; // prepared statements cached per connection, default is 25
+    private boolean vacuumOnOpen; // set by onUpgrade, file was created before auto_vacuum was enabled
+    private final BlockStore blocks = new BlockStore(this);
+
+    /**
+     * compressed lines, written by CaptureStore and read by queries on any thread
+     */
+    public BlockStore getBlockStore() {
+        return blocks;
     }
 
     /**
      * SQL Query
      */
+    private static final String COLUMNS = RequiredParams.KEY_ID + ", " + RequiredParams.KEY_TIMESTAMP + ", "
+            + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_DIRECTION + ", " + RequiredParams.KEY_SERVER_RESPONSE;
+
+    // v2 schema, same columns as a v1 table after upgradeToV2(). date is only filled in rows from v1
     String respTable = "CREATE TABLE " + RequiredParams.TABLE_NAME + "("
             + RequiredParams.KEY_ID + " INTEGER PRIMARY KEY, "
             + RequiredParams.KEY_DATE + " TEXT, "
-            + RequiredParams.KEY_SERVER_RESPONSE + " TEXT" + ")";
+            + RequiredParams.KEY_SERVER_RESPONSE + " TEXT, "
+            + RequiredParams.KEY_TIMESTAMP + " INTEGER NOT NULL DEFAULT 0, "
+            + RequiredParams.KEY_DEVICE + " TEXT, "
+            + RequiredParams.KEY_DIRECTION + " INTEGER NOT NULL DEFAULT 0" + ")";
+
+    // time range and per device queries. rowid (= id) is part of every index, so the WHERE, keyset condition
+    // and ORDER BY timestamp, id are resolved by walking the index. The per device index covers all columns
+    // of COLUMNS, a device page is read from the index alone without a lookup per row. id is listed explicitly
+    // before the payload columns, otherwise ORDER BY timestamp, id needs a sort step. This copies the response
+    // text, raw bytes are not stored here but in the CaptureLog segments. The all devices time index is not covering,
+    // its pages are read from the table by rowid
+    static final String[] RESP_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS " + RequiredParams.INDEX_TIME + " ON " + RequiredParams.TABLE_NAME
+                    + "(" + RequiredParams.KEY_TIMESTAMP + ")",
+            "CREATE INDEX IF NOT EXISTS " + RequiredParams.INDEX_DEVICE_COVER + " ON " + RequiredParams.TABLE_NAME
+                    + "(" + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_TIMESTAMP + ", " + RequiredParams.KEY_ID + ", "
+                    + RequiredParams.KEY_DIRECTION + ", " + RequiredParams.KEY_SERVER_RESPONSE + ")",
+    };
+
+    // full text index on server_response. content is not copied, the index reads it from the response table.
+    // Triggers keep it in sync, so rows are indexed inside the capture writer's batch transaction
+    // and rows removed by RetentionEngine leave the index too. Rows in the pending range are not indexed yet,
+    // removing them from the index would corrupt it
+    private static final String NOT_PENDING = " WHEN NOT EXISTS (SELECT 1 FROM " + RequiredParams.FTS_PENDING_TABLE_NAME
+            + " WHERE old." + RequiredParams.KEY_ID + " BETWEEN " + RequiredParams.KEY_NEXT_ID + " AND " + RequiredParams.KEY_LAST_ID + ")";
+    static final String[] RESP_FTS = {
+            "CREATE TABLE IF NOT EXISTS " + RequiredParams.FTS_PENDING_TABLE_NAME + "("
+                    + RequiredParams.KEY_NEXT_ID + " INTEGER NOT NULL, " + RequiredParams.KEY_LAST_ID + " INTEGER NOT NULL" + ")",
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + RequiredParams.FTS_TABLE_NAME + " USING fts4(content=\"" + RequiredParams.TABLE_NAME
+                    + "\", " + RequiredParams.KEY_SERVER_RESPONSE + ")",
+            "CREATE TRIGGER IF NOT EXISTS " + RequiredParams.FTS_TABLE_NAME + "_ai AFTER INSERT ON " + RequiredParams.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + RequiredParams.FTS_TABLE_NAME + "(docid, " + RequiredParams.KEY_SERVER_RESPONSE + ") "
+                    + "VALUES (new." + RequiredParams.KEY_ID + ", new." + RequiredParams.KEY_SERVER_RESPONSE + "); END",
+            "CREATE TRIGGER IF NOT EXISTS " + RequiredParams.FTS_TABLE_NAME + "_bd BEFORE DELETE ON " + RequiredParams.TABLE_NAME + NOT_PENDING + " BEGIN "
+                    + "DELETE FROM " + RequiredParams.FTS_TABLE_NAME + " WHERE docid = old." + RequiredParams.KEY_ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS " + RequiredParams.FTS_TABLE_NAME + "_bu BEFORE UPDATE OF " + RequiredParams.KEY_SERVER_RESPONSE
+                    + " ON " + RequiredParams.TABLE_NAME + NOT_PENDING + " BEGIN "
+                    + "DELETE FROM " + RequiredParams.FTS_TABLE_NAME + " WHERE docid = old." + RequiredParams.KEY_ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS " + RequiredParams.FTS_TABLE_NAME + "_au AFTER UPDATE OF " + RequiredParams.KEY_SERVER_RESPONSE
+                    + " ON " + RequiredParams.TABLE_NAME + NOT_PENDING + " BEGIN "
+                    + "INSERT INTO " + RequiredParams.FTS_TABLE_NAME + "(docid, " + RequiredParams.KEY_SERVER_RESPONSE + ") "
+                    + "VALUES (new." + RequiredParams.KEY_ID + ", new." + RequiredParams.KEY_SERVER_RESPONSE + "); END",
+    };
 
 
+    // v4 compressed blocks, indexed by the time of their last line, see BlockStore
+    static final String[] BLOCK_TABLE = {
+            "CREATE TABLE IF NOT EXISTS " + RequiredParams.BLOCK_TABLE_NAME + "("
+                    + RequiredParams.KEY_ID + " INTEGER PRIMARY KEY, "
+                    + RequiredParams.KEY_DEVICE + " TEXT, "
+                    + RequiredParams.KEY_FIRST_TIMESTAMP + " INTEGER NOT NULL, "
+                    + RequiredParams.KEY_LAST_TIMESTAMP + " INTEGER NOT NULL, "
+                    + RequiredParams.KEY_COUNT + " INTEGER NOT NULL, "
+                    + RequiredParams.KEY_RAW_SIZE + " INTEGER NOT NULL, "
+                    + RequiredParams.KEY_DATA + " BLOB NOT NULL" + ")",
+            "CREATE INDEX IF NOT EXISTS " + RequiredParams.INDEX_BLOCK_TIME + " ON " + RequiredParams.BLOCK_TABLE_NAME
+                    + "(" + RequiredParams.KEY_LAST_TIMESTAMP + ")",
+            "CREATE INDEX IF NOT EXISTS " + RequiredParams.INDEX_BLOCK_DEVICE_TIME + " ON " + RequiredParams.BLOCK_TABLE_NAME
+                    + "(" + RequiredParams.KEY_DEVICE + ", " + RequiredParams.KEY_LAST_TIMESTAMP + ")",
+    };
+
     /**
      * Code is executing the query we defined before
      * @param db The database.
@@ -40,6 +163,12 @@ public class DBHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
 
         db.execSQL(respTable);
+        for (String index : RESP_INDEXES)
+            db.execSQL(index);
+        for (String fts : RESP_FTS)
+            db.execSQL(fts);
+        for (String block : BLOCK_TABLE)
+            db.execSQL(block);
     }
 
     /**
@@ -51,12 +180,11 @@ public class DBHelper extends SQLiteOpenHelper {
         SQLiteDatabase db = this.getWritableDatabase();
         ContentValues values = new ContentValues();
         values.put(RequiredParams.KEY_SERVER_RESPONSE, model.getGetResp());
-        values.put(RequiredParams.KEY_DATE, model.getDate());
+        values.put(RequiredParams.KEY_TIMESTAMP, model.getTimestamp() != 0 ? model.getTimestamp() : System.currentTimeMillis());
+        values.put(RequiredParams.KEY_DEVICE, model.getDevice());
+        values.put(RequiredParams.KEY_DIRECTION, model.getDirection());
 
         db.insert(RequiredParams.TABLE_NAME, null, values);
-        Log.d("sdasf", "successfully inserted");
-        db.close();
-
     }
 
     /**
@@ -68,27 +196,131 @@ public class DBHelper extends SQLiteOpenHelper {
     public List<Model> getAllResult() {//fun to get data from table
         List<Model> modelList = new ArrayList<>(); //creating array list to store data into list
         SQLiteDatabase db = this.getReadableDatabase(); //creating db obj to read data
-        String select = "SELECT * FROM " + RequiredParams.TABLE_NAME; //generating query to select db
+        String select = "SELECT " + COLUMNS + " FROM " + RequiredParams.TABLE_NAME; //generating query to select db
 
         //cursor is used to navigate into db table
         Cursor cursor = db.rawQuery(select, null); //creating cursor obj and passing query into cursor
         if (cursor.moveToFirst()) {
             do { //using do while loop because first it will intialise then condition will check
                 Model model = new Model(); //creating obj of contact because we need to set data
-                model.setId(Integer.parseInt(cursor.getString(0))); //get values from cursor and setting data into contact model
-                model.setGetResp(cursor.getString(1));
-
-                model.setDate(cursor.getString(2));
+                model.setId(cursor.getInt(0)); //get values from cursor and setting data into contact model
+                model.setTimestamp(cursor.getLong(1));
+                model.setDevice(cursor.getString(2));
+                model.setDirection(cursor.getInt(3));
+                model.setGetResp(cursor.getString(4));
 
                 modelList.add(model); // in last adding all contact into list
 
             } while (cursor.moveToNext()); //checking condition here
         }
+        cursor.close();
 
 
         return modelList;
     }
 
+    /**
+     * Keyset pagination: rows with id greater than afterId in ascending order,
+     * or with id less than beforeId in descending order.
+     * Only limit rows are read, the cursor window is streamed to the callback without building a list.
+     * Pass the id of the last row received to get the next page.
+     *
+     * @return number of rows passed to the callback
+     */
+    public int queryAfter(long afterId, int limit, RowCallback callback) {
+        return query(RequiredParams.KEY_ID + " > ?", new String[]{Long.toString(afterId)},
+                RequiredParams.KEY_ID + " ASC", limit, callback);
+    }
+
+    public int queryBefore(long beforeId, int limit, RowCallback callback) {
+        return query(RequiredParams.KEY_ID + " < ?", new String[]{Long.toString(beforeId)},
+                RequiredParams.KEY_ID + " DESC", limit, callback);
+    }
+
+    /**
+     * Keyset pagination by time: rows with fromTime <= timestamp < toTime in (timestamp, id) order,
+     * optionally for one device only (device == null for all).
+     * First page: afterTimestamp = fromTime, afterId = -1.
+     * Next page: timestamp and id of the last row received.
+     */
+    public int queryTimeRange(String device, long fromTime, long toTime, long afterTimestamp, long afterId, int limit, RowCallback callback) {
+        String ts = RequiredParams.KEY_TIMESTAMP;
+        String where = ts + " < ? AND " + ts + " >= ? AND (" + ts + " > ? OR (" + ts + " = ? AND " + RequiredParams.KEY_ID + " > ?))";
+        String after = Long.toString(Math.max(afterTimestamp, fromTime));
+        String[] args;
+        if (device != null) {
+            where = RequiredParams.KEY_DEVICE + " = ? AND " + where;
+            args = new String[]{device, Long.toString(toTime), Long.toString(fromTime), after, after, Long.toString(afterId)};
+        } else {
+            args = new String[]{Long.toString(toTime), Long.toString(fromTime), after, after, Long.toString(afterId)};
+        }
+        return query(where, args, ts + ", " + RequiredParams.KEY_ID, limit, callback);
+    }
+
+    /**
+     * number of rows queryTimeRange() would return in total, counted from the index
+     */
+    public long countTimeRange(String device, long fromTime, long toTime) {
+        return countTimeRange(device, -1, fromTime, toTime);
+    }
+
+    /**
+     * number of rows of one direction in the time range. With a device this only needs the covering index,
+     * for all devices direction is not indexed, so unlike direction -1 (all) this reads the rows in range
+     * @param direction RequiredParams.DIRECTION_*, -1 for all
+     */
+    public long countTimeRange(String device, int direction, long fromTime, long toTime) {
+        String ts = RequiredParams.KEY_TIMESTAMP;
+        String where = ts + " >= ? AND " + ts + " < ?";
+        String[] args = {Long.toString(fromTime), Long.toString(toTime)};
+        if (device != null) {
+            where = RequiredParams.KEY_DEVICE + " = ? AND " + where;
+            args = new String[]{device, args[0], args[1]};
+        }
+        if (direction >= 0)
+            where += " AND " + RequiredParams.KEY_DIRECTION + " = " + direction;
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), RequiredParams.TABLE_NAME, where, args);
+    }
+
+    /**
+     * one page as list, for small limits like a screen full
+     */
+    public List<Model> getResultPage(long afterId, int limit) {
+        List<Model> modelList = new ArrayList<>(Math.min(limit, 100));
+        queryAfter(afterId, limit, (id, timestamp, device, direction, response) -> {
+            Model model = new Model();
+            model.setId((int) id);
+            model.setTimestamp(timestamp);
+            model.setDevice(device);
+            model.setDirection(direction);
+            model.setGetResp(response);
+            modelList.add(model);
+            return true;
+        });
+        return modelList;
+    }
+
+    private int query(String where, String[] args, String orderBy, int limit, RowCallback callback) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        String select = "SELECT " + COLUMNS + " FROM " + RequiredParams.TABLE_NAME
+                + " WHERE " + where + " ORDER BY " + orderBy + " LIMIT " + limit;
+        int count = 0;
+        try (Cursor cursor = db.rawQuery(select, args)) {
+            int idColumn = cursor.getColumnIndexOrThrow(RequiredParams.KEY_ID);
+            int timestampColumn = cursor.getColumnIndexOrThrow(RequiredParams.KEY_TIMESTAMP);
+            int deviceColumn = cursor.getColumnIndexOrThrow(RequiredParams.KEY_DEVICE);
+            int directionColumn = cursor.getColumnIndexOrThrow(RequiredParams.KEY_DIRECTION);
+            int responseColumn = cursor.getColumnIndexOrThrow(RequiredParams.KEY_SERVER_RESPONSE);
+            while (cursor.moveToNext()) {
+                count++;
+                if (!callback.onRow(cursor.getLong(idColumn), cursor.getLong(timestampColumn), cursor.getString(deviceColumn),
+                        cursor.getInt(directionColumn), cursor.getString(responseColumn)))
+                    break;
+            }
+        }
+        return count;
+    }
+
     /**
      *
      * Called db needs to be upgraded
@@ -99,12 +331,92 @@ public class DBHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // this method is called to check if the table exists already.
-        db.execSQL("DROP TABLE IF EXISTS " + RequiredParams.TABLE_NAME);
-        onCreate(db);
+        // each step migrates from the previous version and keeps all rows
+        vacuumOnOpen = true;
+        if (oldVersion < 2)
+            upgradeToV2(db);
+        if (oldVersion < 3)
+            upgradeToV3(db);
+        if (oldVersion < 4)
+            upgradeToV4(db);
+        if (oldVersion < 5)
+            upgradeToV5(db);
+    }
 
+    /**
+     * v1 -> v2: epoch ms timestamp (from the v1 date text), device and direction columns plus indexes
+     */
+    private void upgradeToV2(SQLiteDatabase db) {
+        String table = RequiredParams.TABLE_NAME;
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + RequiredParams.KEY_TIMESTAMP + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + RequiredParams.KEY_DEVICE + " TEXT");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + RequiredParams.KEY_DIRECTION + " INTEGER NOT NULL DEFAULT 0");
+        db.execSQL("UPDATE " + table + " SET " + RequiredParams.KEY_TIMESTAMP
+                + " = COALESCE(CAST(strftime('%s', " + RequiredParams.KEY_DATE + ", 'utc') AS INTEGER) * 1000, 0)");
+        for (String index : RESP_INDEXES)
+            db.execSQL(index);
+    }
 
-}
+    /**
+     * v2 -> v3: full text index. New rows are indexed by the triggers, existing rows are only recorded as pending,
+     * a 'rebuild' of a large table here would block whoever opens the database. See indexPending()
+     */
+    private void upgradeToV3(SQLiteDatabase db) {
+        for (String fts : RESP_FTS)
+            db.execSQL(fts);
+        db.execSQL("INSERT INTO " + RequiredParams.FTS_PENDING_TABLE_NAME + " SELECT MIN(" + RequiredParams.KEY_ID + "), MAX("
+                + RequiredParams.KEY_ID + ") FROM " + RequiredParams.TABLE_NAME + " HAVING COUNT(*) > 0");
+    }
+
+    /**
+     * add up to max rows from before the v3 upgrade to the full text index, in one short transaction.
+     * Called by the capture writer while it has nothing else to do
+     * @return true if rows are left
+     */
+    boolean indexPending(SQLiteDatabase db, int max) {
+        db.beginTransactionNonExclusive();
+        try {
+            long next, last;
+            try (Cursor cursor = db.rawQuery("SELECT " + RequiredParams.KEY_NEXT_ID + ", " + RequiredParams.KEY_LAST_ID
+                    + " FROM " + RequiredParams.FTS_PENDING_TABLE_NAME, null)) {
+                if (!cursor.moveToFirst())
+                    return false;
+                next = cursor.getLong(0);
+                last = cursor.getLong(1);
+            }
+            String range = " FROM " + RequiredParams.TABLE_NAME + " WHERE " + RequiredParams.KEY_ID + " BETWEEN " + next + " AND ";
+            long end = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + RequiredParams.KEY_ID + "), " + last + ") FROM (SELECT "
+                    + RequiredParams.KEY_ID + range + last + " ORDER BY " + RequiredParams.KEY_ID + " LIMIT " + max + ")", null);
+            db.execSQL("INSERT INTO " + RequiredParams.FTS_TABLE_NAME + "(docid, " + RequiredParams.KEY_SERVER_RESPONSE + ") SELECT "
+                    + RequiredParams.KEY_ID + ", " + RequiredParams.KEY_SERVER_RESPONSE + range + end);
+            if (end >= last)
+                db.execSQL("DELETE FROM " + RequiredParams.FTS_PENDING_TABLE_NAME);
+            else
+                db.execSQL("UPDATE " + RequiredParams.FTS_PENDING_TABLE_NAME + " SET " + RequiredParams.KEY_NEXT_ID + " = " + (end + 1));
+            db.setTransactionSuccessful();
+            return end < last;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * v3 -> v4: table for compressed blocks, existing rows stay uncompressed
+     */
+    private void upgradeToV4(SQLiteDatabase db) {
+        for (String block : BLOCK_TABLE)
+            db.execSQL(block);
+    }
+
+    /**
+     * v4 -> v5: the (device, timestamp) index is replaced by the covering per device index.
+     * Built here in one pass over the table, once at migration time
+     */
+    private void upgradeToV5(SQLiteDatabase db) {
+        db.execSQL("DROP INDEX IF EXISTS " + RequiredParams.INDEX_DEVICE_TIME);
+        for (String index : RESP_INDEXES)
+            db.execSQL(index);
+    }
 
 //    public void deleteResult(int id) { //we have taken id here because we need a parameter inside this
 //        SQLiteDatabase db = this.getWritableDatabase();
@@ -1,5 +1,9 @@
 package com.apogee.basicble.SQlite;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
 /**
  * Model class for table items
  * Getter and setter for table items
@@ -13,6 +17,12 @@ public class Model {
 
     private String date;
 
+    private long timestamp; // epoch ms, 0 = now when added
+
+    private String device;
+
+    private int direction = RequiredParams.DIRECTION_RECEIVE;
+
     public int getId() {
         return id;
     }
@@ -31,6 +41,8 @@ public class Model {
     }
 
     public String getDate() {
+        if (date == null && timestamp != 0)
+            date = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(timestamp));
         return date;
     }
 
@@ -38,4 +50,29 @@ public class Model {
         this.date = date;
     }
 
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+        this.date = null;
+    }
+
+    public String getDevice() {
+        return device;
+    }
+
+    public void setDevice(String device) {
+        this.device = device;
+    }
+
+    public int getDirection() {
+        return direction;
+    }
+
+    public void setDirection(int direction) {
+        this.direction = direction;
+    }
+
 }
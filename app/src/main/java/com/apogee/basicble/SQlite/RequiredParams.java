@@ -6,7 +6,7 @@ public class RequiredParams {
          * Initialization of variables related to db
          */
 
-        public static final int DB_VERSION=1;
+        public static final int DB_VERSION=5;
         public static final String DB_NAME="server_response";
 
         //keys of our table in server_response
@@ -14,6 +14,29 @@ public class RequiredParams {
         public static final String KEY_ID="id";
         public static final String KEY_DATE="date";
         public static final String KEY_SERVER_RESPONSE="server_response";
+        public static final String KEY_TIMESTAMP="timestamp";   // epoch ms
+        public static final String KEY_DEVICE="device";         // mac address
+        public static final String KEY_DIRECTION="direction";   // DIRECTION_*
+        public static final String INDEX_TIME="response_time";
+        public static final String INDEX_DEVICE_TIME="response_device_time";  // v2..v4, replaced by INDEX_DEVICE_COVER
+        public static final String INDEX_DEVICE_COVER="response_device_cover"; // device, timestamp, id + all selected columns
+        public static final String FTS_TABLE_NAME="response_fts"; // full text index on KEY_SERVER_RESPONSE
+        public static final String FTS_PENDING_TABLE_NAME="response_fts_pending"; // ids not yet in FTS_TABLE_NAME after upgrade
+        public static final String KEY_NEXT_ID="next_id";
+        public static final String KEY_LAST_ID="last_id";
+
+        //compressed blocks of lines, see BlockStore
+        public static final String BLOCK_TABLE_NAME="response_block";
+        public static final String KEY_FIRST_TIMESTAMP="first_timestamp";
+        public static final String KEY_LAST_TIMESTAMP="last_timestamp";
+        public static final String KEY_COUNT="count";           // lines in block
+        public static final String KEY_RAW_SIZE="raw_size";     // uncompressed bytes
+        public static final String KEY_DATA="data";            // deflate compressed lines
+        public static final String INDEX_BLOCK_TIME="response_block_time";
+        public static final String INDEX_BLOCK_DEVICE_TIME="response_block_device_time";
+
+        public static final int DIRECTION_RECEIVE=0;
+        public static final int DIRECTION_SEND=1;
 
 
     }
\ No newline at end of file
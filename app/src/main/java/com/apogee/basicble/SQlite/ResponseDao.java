@@ -0,0 +1,116 @@
+package com.apogee.basicble.SQlite;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * asynchronous access to DBHelper
+ * - all queries run in order on one database thread, shared by all instances
+ * - results and errors are delivered on the callback executor, e.g. mainLooper::post
+ * - Task.cancel() called on the callback executor's thread guarantees that no callback follows,
+ *   so screens can cancel in onDestroyView without checking for a destroyed view
+ */
+public class ResponseDao {
+
+    public interface Callback<T> {
+        void onResult(T result);
+
+        void onError(Exception e);
+    }
+
+    public interface Query<T> {
+        T run(DBHelper helper) throws Exception;
+    }
+
+    public static class Task {
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        /**
+         * drop the result, a query not yet started is not run at all
+         */
+        public void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                if (future != null)
+                    future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final ExecutorService DB_EXECUTOR = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "ResponseDao");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        ((ThreadPoolExecutor) DB_EXECUTOR).allowCoreThreadTimeOut(true);
+    }
+
+    private final DBHelper helper;
+    private final Executor callbackExecutor;
+
+    public ResponseDao(DBHelper helper, Executor callbackExecutor) {
+        this.helper = helper;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * run any query on the database thread
+     */
+    public <T> Task execute(Query<T> query, Callback<T> callback) {
+        Task task = new Task();
+        Future<?> future = DB_EXECUTOR.submit(() -> {
+            if (task.cancelled)
+                return;
+            T result;
+            try {
+                result = query.run(helper);
+            } catch (Exception e) {
+                callbackExecutor.execute(() -> {
+                    if (!task.cancelled)
+                        callback.onError(e);
+                });
+                return;
+            }
+            callbackExecutor.execute(() -> {
+                if (!task.cancelled)
+                    callback.onResult(result);
+            });
+        });
+        synchronized (task) {
+            task.future = future;
+        }
+        return task;
+    }
+
+    public Task addResult(Model model, Callback<Void> callback) {
+        return execute(helper -> {
+            helper.addResult(model);
+            return null;
+        }, callback);
+    }
+
+    public Task getResultPage(long afterId, int limit, Callback<List<Model>> callback) {
+        return execute(helper -> helper.getResultPage(afterId, limit), callback);
+    }
+
+    public Task countTimeRange(String device, long fromTime, long toTime, Callback<Long> callback) {
+        return execute(helper -> helper.countTimeRange(device, fromTime, toTime), callback);
+    }
+
+    public Task search(String query, String device, Callback<ResponseSearch.Result> callback) {
+        return execute(helper -> new ResponseSearch(helper).search(query, device), callback);
+    }
+}
@@ -0,0 +1,275 @@
+package com.apogee.basicble.SQlite;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * full text search over captured responses
+ * - the FTS index returns matching rows newest first, at most MAX_CANDIDATES of them
+ * - candidates are ranked by BM25, computed from matchinfo() as framework SQLite has no ranking function
+ * - the ranked list only holds ids and scores, rows are loaded page by page
+ * - compressed lines (BlockStore) are not in the full text index. The newest MAX_BLOCKS blocks are inflated
+ *   and their lines matched by substring, these hits have score 0 and follow the ranked ones, newest first
+ * Blocking, call from a background thread.
+ */
+public class ResponseSearch {
+
+    static final int MAX_CANDIDATES = 5000;
+    static final int MAX_BLOCKS = 256; // ~16 MB of text inflated at most
+    private static final double K1 = 1.2; // BM25 term frequency saturation
+    private static final double B = 0.75; // BM25 length normalization
+
+    public static class Hit {
+        public final long id;
+        public final long timestamp; // epoch ms
+        public final String device;
+        public final int direction;
+        public final String response;
+        public final double score;
+
+        Hit(long id, long timestamp, String device, int direction, String response, double score) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.device = device;
+            this.direction = direction;
+            this.response = response;
+            this.score = score;
+        }
+    }
+
+    /**
+     * ranked hits of one search
+     */
+    public class Result {
+        private final long[] ids;       // best first
+        private final double[] scores;
+        private final List<Hit> blockHits; // after ids, newest first
+        private final boolean truncated;
+
+        private Result(long[] ids, double[] scores, List<Hit> blockHits, boolean truncated) {
+            this.ids = ids;
+            this.scores = scores;
+            this.blockHits = blockHits;
+            this.truncated = truncated;
+        }
+
+        public int size() {
+            return ids.length + blockHits.size();
+        }
+
+        /**
+         * true if there were more matches than MAX_CANDIDATES, then only the newest are ranked,
+         * or more than MAX_BLOCKS compressed blocks
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * load hits [offset, offset + limit) in rank order
+         */
+        public List<Hit> page(int offset, int limit) {
+            List<Hit> hits = new ArrayList<>();
+            int end = Math.min(ids.length, offset + limit);
+            if (offset < end)
+                loadRows(offset, end, hits);
+            for (int i = Math.max(offset, ids.length); i < Math.min(size(), offset + limit); i++)
+                hits.add(blockHits.get(i - ids.length));
+            return hits;
+        }
+
+        private void loadRows(int offset, int end, List<Hit> hits) {
+            StringBuilder in = new StringBuilder();
+            for (int i = offset; i < end; i++)
+                in.append(i > offset ? "," : "").append(ids[i]);
+            Hit[] ordered = new Hit[end - offset];
+            String select = "SELECT " + RequiredParams.KEY_ID + ", " + RequiredParams.KEY_TIMESTAMP + ", " + RequiredParams.KEY_DEVICE + ", "
+                    + RequiredParams.KEY_DIRECTION + ", " + RequiredParams.KEY_SERVER_RESPONSE + " FROM " + RequiredParams.TABLE_NAME
+                    + " WHERE " + RequiredParams.KEY_ID + " IN (" + in + ")";
+            try (Cursor cursor = helper.getReadableDatabase().rawQuery(select, null)) {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    for (int i = offset; i < end; i++) {
+                        if (ids[i] == id) {
+                            ordered[i - offset] = new Hit(id, cursor.getLong(1), cursor.getString(2), cursor.getInt(3), cursor.getString(4), scores[i]);
+                            break;
+                        }
+                    }
+                }
+            }
+            for (Hit hit : ordered)
+                if (hit != null) // deleted by retention since search
+                    hits.add(hit);
+        }
+    }
+
+    private final DBHelper helper;
+
+    public ResponseSearch(DBHelper helper) {
+        this.helper = helper;
+    }
+
+    /**
+     * Rows from before the v3 upgrade are only found once DBHelper.indexPending() has indexed them
+     *
+     * @param query  FTS match expression, e.g. from quote(). Empty or blank matches nothing
+     * @param device only rows of this device, null for all
+     */
+    public Result search(String query, String device) {
+        if (query == null || query.trim().isEmpty())
+            return new Result(new long[0], new double[0], new ArrayList<>(), false);
+        String select = "SELECT f.docid, matchinfo(" + RequiredParams.FTS_TABLE_NAME + ", 'pcnalx') FROM "
+                + RequiredParams.FTS_TABLE_NAME + " f";
+        String[] args;
+        if (device != null) {
+            select += " JOIN " + RequiredParams.TABLE_NAME + " r ON r." + RequiredParams.KEY_ID + " = f.docid WHERE "
+                    + RequiredParams.FTS_TABLE_NAME + " MATCH ? AND r." + RequiredParams.KEY_DEVICE + " = ?";
+            args = new String[]{query, device};
+        } else {
+            select += " WHERE " + RequiredParams.FTS_TABLE_NAME + " MATCH ?";
+            args = new String[]{query};
+        }
+        select += " ORDER BY f.docid DESC LIMIT " + (MAX_CANDIDATES + 1);
+
+        SQLiteDatabase db = helper.getReadableDatabase();
+        long[] ids = new long[64];
+        double[] scores = new double[64];
+        int count = 0;
+        boolean truncated = false;
+        try (Cursor cursor = db.rawQuery(select, args)) {
+            while (cursor.moveToNext()) {
+                if (count == MAX_CANDIDATES) {
+                    truncated = true;
+                    break;
+                }
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    scores = Arrays.copyOf(scores, count * 2);
+                }
+                ids[count] = cursor.getLong(0);
+                scores[count] = bm25(cursor.getBlob(1));
+                count++;
+            }
+        }
+        // sort by score, newer first on equal score. Candidates are already newest first, so a stable sort is enough
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++)
+            order[i] = i;
+        final double[] s = scores;
+        Arrays.sort(order, (a, b) -> Double.compare(s[b], s[a]));
+        long[] rankedIds = new long[count];
+        double[] rankedScores = new double[count];
+        for (int i = 0; i < count; i++) {
+            rankedIds[i] = ids[order[i]];
+            rankedScores[i] = scores[order[i]];
+        }
+        List<Hit> blockHits = new ArrayList<>();
+        truncated |= searchBlocks(terms(query), device, MAX_CANDIDATES - count, blockHits);
+        return new Result(rankedIds, rankedScores, blockHits, truncated);
+    }
+
+    /**
+     * lines of the newest compressed blocks containing all terms, case insensitive
+     *
+     * @return true if there were more hits than max or more blocks than MAX_BLOCKS
+     */
+    private boolean searchBlocks(List<String> terms, String device, int max, List<Hit> hits) {
+        if (terms.isEmpty())
+            return false;
+        long[] block = {-1};
+        int[] blocks = {0};
+        boolean[] truncated = {false};
+        helper.getBlockStore().queryLatest(device, MAX_BLOCKS + 1, (id, timestamp, lineDevice, direction, response) -> {
+            if (id >> 16 != block[0]) {
+                block[0] = id >> 16;
+                if (++blocks[0] > MAX_BLOCKS || hits.size() > max) {
+                    truncated[0] = true;
+                    return false;
+                }
+            }
+            if (response != null && containsAll(response, terms))
+                hits.add(new Hit(id, timestamp, lineDevice, direction, response, 0));
+            return true;
+        });
+        hits.sort((a, b) -> Long.compare(b.timestamp, a.timestamp)); // blocks are newest first, their lines oldest first
+        if (hits.size() > max) {
+            hits.subList(Math.max(0, max), hits.size()).clear();
+            truncated[0] = true;
+        }
+        return truncated[0];
+    }
+
+    private static boolean containsAll(String text, List<String> terms) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (String term : terms)
+            if (!lower.contains(term))
+                return false;
+        return true;
+    }
+
+    /**
+     * words of a match expression for substring matching: quotes and prefix '*' removed, operators skipped
+     */
+    static List<String> terms(String query) {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.equals("AND") || word.equals("OR") || word.equals("NOT"))
+                continue;
+            if (word.length() >= 2 && word.startsWith("\"") && word.endsWith("\""))
+                word = word.substring(1, word.length() - 1).replace("\"\"", "\"");
+            if (word.endsWith("*"))
+                word = word.substring(0, word.length() - 1);
+            if (!word.isEmpty())
+                terms.add(word.toLowerCase(Locale.ROOT));
+        }
+        return terms;
+    }
+
+    /**
+     * turn user input into a match expression: each word is matched literally, the last one as prefix
+     */
+    public static String quote(String text) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : text.trim().split("\\s+")) {
+            if (word.isEmpty())
+                continue;
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append('"').append(word.replace("\"", "\"\"")).append('"');
+        }
+        if (sb.length() > 0)
+            sb.insert(sb.length() - 1, '*'); // "word*"
+        return sb.toString();
+    }
+
+    /**
+     * BM25 from matchinfo 'pcnalx' with one column:
+     * p phrases, c columns, n rows, a average tokens, l tokens in this row,
+     * then per phrase: hits in this row, hits in all rows, rows with hits
+     */
+    static double bm25(byte[] matchinfo) {
+        ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        long rows = info.getInt(8) & 0xffffffffL;
+        double averageLength = Math.max(1, info.getInt(12) & 0xffffffffL);
+        double length = info.getInt(12 + 4 * columns) & 0xffffffffL;
+        int x = 12 + 8 * columns;
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            int pos = x + 12 * p * columns;
+            double hits = info.getInt(pos) & 0xffffffffL;
+            double docs = info.getInt(pos + 8) & 0xffffffffL;
+            double idf = Math.log(1 + (rows - docs + 0.5) / (docs + 0.5));
+            score += idf * hits * (K1 + 1) / (hits + K1 * (1 - B + B * length / averageLength));
+        }
+        return score;
+    }
+}
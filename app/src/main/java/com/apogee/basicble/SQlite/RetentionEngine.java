@@ -0,0 +1,328 @@
+package com.apogee.basicble.SQlite;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * keep the response table and the compressed blocks bounded
+ * - limits: max age, max rows per device, max bytes per device, 0 = no limit.
+ *   A block counts as its lines for the row limit and as its compressed size for the byte limit,
+ *   the oldest rows and blocks of a device are deleted first, a block only as a whole
+ * - runs on its own background thread, periodically after start()
+ * - rows and bytes per device are summed once, later runs only add rows and blocks inserted since
+ *   (id > scannedId resp. scannedBlockId) and subtract what they delete,
+ *   so a run reads new rows and rows to delete but never the whole table
+ * - deletes in batches of DELETE_BATCH rows, each in its own short transaction,
+ *   so the capture writer is never blocked for long
+ * - afterwards free pages are returned to the file system with a bounded number of incremental vacuum steps
+ */
+public class RetentionEngine {
+
+    private static final String TAG = "RetentionEngine";
+    private static final int DELETE_BATCH = 500;
+    private static final int VACUUM_PAGES = 1024;   // pages released per incremental_vacuum step
+    private static final int VACUUM_MAX_STEPS = 64; // per run, remaining pages are released next run
+    private static final int ROW_OVERHEAD = 32;     // bytes added to response length per row in byte limit
+    private static final String ROW_BYTES = "IFNULL(LENGTH(" + RequiredParams.KEY_SERVER_RESPONSE + "), 0) + " + ROW_OVERHEAD;
+    private static final String BLOCK_BYTES = "LENGTH(" + RequiredParams.KEY_DATA + ") + " + ROW_OVERHEAD;
+
+    private static class Usage {
+        long rows;
+        long bytes;
+    }
+
+    private final DBHelper helper;
+    private final ScheduledThreadPoolExecutor executor;
+    private ScheduledFuture<?> periodic;
+    private volatile long maxAge;    // ms
+    private volatile int maxRows;    // per device
+    private volatile long maxBytes;  // per device
+    private final Map<String, Usage> usage = new HashMap<>(); // rows with id <= scannedId and blocks with id <= scannedBlockId by device, null key = no device. executor thread only
+    private long scannedId;
+    private long scannedBlockId;
+
+    public RetentionEngine(DBHelper helper) {
+        this.helper = helper;
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    public void setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAge = unit.toMillis(maxAge);
+    }
+
+    public void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * compact after initialDelay and then every interval
+     */
+    public synchronized void start(long initialDelay, long interval, TimeUnit unit) {
+        if (periodic != null)
+            periodic.cancel(false);
+        periodic = executor.scheduleWithFixedDelay(this::runSafe, initialDelay, interval, unit);
+    }
+
+    /**
+     * compact now in background, e.g. after limits changed
+     */
+    public void compactNow() {
+        executor.execute(this::runSafe);
+    }
+
+    /**
+     * stop, a running compaction completes its current batch
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void runSafe() {
+        try {
+            long start = System.currentTimeMillis();
+            int deleted = compact();
+            if (deleted > 0)
+                Log.d(TAG, "deleted " + deleted + " rows and blocks in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            Log.e(TAG, "compaction failed", e);
+        }
+    }
+
+    /**
+     * apply all limits, then vacuum. Called in background thread
+     *
+     * @return number of deleted rows and blocks
+     */
+    int compact() {
+        SQLiteDatabase db = helper.getWritableDatabase();
+        updateUsage(db);
+        int deleted = 0;
+        long maxAge = this.maxAge;
+        if (maxAge > 0) {
+            long before = System.currentTimeMillis() - maxAge;
+            deleted += deleteOlder(db, null, null, before, 0);
+            deleted += deleteOlderBlocks(db, null, null, before, 0);
+        }
+        if (maxRows > 0 || maxBytes > 0) {
+            for (Map.Entry<String, Usage> entry : usage.entrySet()) {
+                if (Thread.currentThread().isInterrupted())
+                    break;
+                deleted += limitDevice(db, entry.getKey(), entry.getValue());
+            }
+        }
+        for (Iterator<Usage> it = usage.values().iterator(); it.hasNext(); )
+            if (it.next().rows <= 0)
+                it.remove();
+        if (deleted > 0)
+            incrementalVacuum(db);
+        return deleted;
+    }
+
+    /**
+     * add rows and blocks inserted since the last run to the per device usage, found by rowid range
+     */
+    private void updateUsage(SQLiteDatabase db) {
+        long maxId = maxId(db, RequiredParams.TABLE_NAME);
+        long maxBlockId = maxId(db, RequiredParams.BLOCK_TABLE_NAME);
+        if (maxId < scannedId || maxBlockId < scannedBlockId) { // table was emptied, ids start over
+            usage.clear();
+            scannedId = 0;
+            scannedBlockId = 0;
+        }
+        String range = RequiredParams.KEY_ID + " > ? AND " + RequiredParams.KEY_ID + " <= ?";
+        addUsage(db, RequiredParams.TABLE_NAME, "COUNT(*)", ROW_BYTES, range, new String[]{Long.toString(scannedId), Long.toString(maxId)}, 1);
+        addUsage(db, RequiredParams.BLOCK_TABLE_NAME, "SUM(" + RequiredParams.KEY_COUNT + ")", BLOCK_BYTES, range,
+                new String[]{Long.toString(scannedBlockId), Long.toString(maxBlockId)}, 1);
+        scannedId = maxId;
+        scannedBlockId = maxBlockId;
+    }
+
+    private static long maxId(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + RequiredParams.KEY_ID + "), 0) FROM " + table, null);
+    }
+
+    /**
+     * add (sign 1) or subtract (sign -1) rows and bytes of the matching rows of table to the usage by device
+     */
+    private void addUsage(SQLiteDatabase db, String table, String rows, String bytes, String where, String[] args, int sign) {
+        String select = "SELECT " + RequiredParams.KEY_DEVICE + ", " + rows + ", SUM(" + bytes + ") FROM " + table
+                + " WHERE " + where + " GROUP BY " + RequiredParams.KEY_DEVICE;
+        try (Cursor cursor = db.rawQuery(select, args)) {
+            while (cursor.moveToNext()) {
+                String device = cursor.getString(0);
+                Usage u = usage.get(device);
+                if (u == null) {
+                    if (sign < 0)
+                        continue;
+                    usage.put(device, u = new Usage());
+                }
+                u.rows += sign * cursor.getLong(1);
+                u.bytes += sign * cursor.getLong(2);
+            }
+        }
+    }
+
+    /**
+     * freed pages are otherwise reused by later inserts, the file just doesn't shrink.
+     * Stops after VACUUM_MAX_STEPS or when a step frees nothing, e.g. while pages are still used by a reader
+     */
+    private static void incrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != DBHelper.AUTO_VACUUM_INCREMENTAL)
+            return;
+        long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        for (int step = 0; step < VACUUM_MAX_STEPS && free > 0 && !Thread.currentThread().isInterrupted(); step++) {
+            // returns one row per freed page, which has to be stepped through for the pages to be released
+            try (Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null)) {
+                while (cursor.moveToNext()) {
+                    // nop
+                }
+            }
+            long left = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            if (left >= free)
+                break;
+            free = left;
+        }
+    }
+
+    /**
+     * if the device is over a limit, walk its oldest rows and blocks through the (device, timestamp) indexes
+     * in time order until enough are counted, a block by the time of its last line.
+     * Everything older than the first row resp. block to keep is deleted
+     */
+    private int limitDevice(SQLiteDatabase db, String device, Usage u) {
+        long excessRows = maxRows > 0 ? u.rows - maxRows : 0;
+        long excessBytes = maxBytes > 0 ? u.bytes - maxBytes : 0;
+        if (excessRows <= 0 && excessBytes <= 0)
+            return 0;
+        String rowSelect = "SELECT " + RequiredParams.KEY_TIMESTAMP + ", " + RequiredParams.KEY_ID + ", 1, " + ROW_BYTES
+                + " FROM " + RequiredParams.TABLE_NAME + " WHERE " + deviceWhere(device) + " AND " + RequiredParams.KEY_ID + " <= " + scannedId
+                + " ORDER BY " + RequiredParams.KEY_TIMESTAMP + ", " + RequiredParams.KEY_ID;
+        String blockSelect = "SELECT " + RequiredParams.KEY_LAST_TIMESTAMP + ", " + RequiredParams.KEY_ID + ", " + RequiredParams.KEY_COUNT + ", " + BLOCK_BYTES
+                + " FROM " + RequiredParams.BLOCK_TABLE_NAME + " WHERE " + deviceWhere(device) + " AND " + RequiredParams.KEY_ID + " <= " + scannedBlockId
+                + " ORDER BY " + RequiredParams.KEY_LAST_TIMESTAMP + ", " + RequiredParams.KEY_ID;
+        long rows = 0;
+        long bytes = 0;
+        long beforeTimestamp = Long.MAX_VALUE; // all rows, if the usage was off
+        long beforeId = Long.MAX_VALUE;
+        long beforeBlockTimestamp = Long.MAX_VALUE;
+        long beforeBlockId = Long.MAX_VALUE;
+        try (Cursor rowCursor = db.rawQuery(rowSelect, deviceArgs(device));
+             Cursor blockCursor = db.rawQuery(blockSelect, deviceArgs(device))) {
+            boolean row = rowCursor.moveToNext();
+            boolean block = blockCursor.moveToNext();
+            while ((row || block) && (rows < excessRows || bytes < excessBytes)) {
+                Cursor oldest = row && (!block || rowCursor.getLong(0) <= blockCursor.getLong(0)) ? rowCursor : blockCursor;
+                rows += oldest.getLong(2);
+                bytes += oldest.getLong(3);
+                if (oldest == rowCursor)
+                    row = rowCursor.moveToNext();
+                else
+                    block = blockCursor.moveToNext();
+            }
+            if (row) {
+                beforeTimestamp = rowCursor.getLong(0);
+                beforeId = rowCursor.getLong(1);
+            }
+            if (block) {
+                beforeBlockTimestamp = blockCursor.getLong(0);
+                beforeBlockId = blockCursor.getLong(1);
+            }
+        }
+        int deleted = deleteOlder(db, deviceWhere(device), deviceArgs(device), beforeTimestamp, beforeId);
+        deleted += deleteOlderBlocks(db, deviceWhere(device), deviceArgs(device), beforeBlockTimestamp, beforeBlockId);
+        u.rows -= rows;
+        u.bytes -= bytes;
+        return deleted;
+    }
+
+    /**
+     * delete rows with (timestamp, id) < (beforeTimestamp, beforeId) and id <= scannedId in batches.
+     * For all devices, their usage is reduced by the rows to delete, for one device the caller does it
+     *
+     * @param deviceWhere condition from deviceWhere(), null for all devices
+     */
+    private int deleteOlder(SQLiteDatabase db, String deviceWhere, String[] deviceArgs, long beforeTimestamp, long beforeId) {
+        String ts = RequiredParams.KEY_TIMESTAMP;
+        String where = "(" + ts + " < ? OR (" + ts + " = ? AND " + RequiredParams.KEY_ID + " < ?)) AND " + RequiredParams.KEY_ID + " <= " + scannedId;
+        String[] args = {Long.toString(beforeTimestamp), Long.toString(beforeTimestamp), Long.toString(beforeId)};
+        if (deviceWhere != null) {
+            where = deviceWhere + " AND " + where;
+            if (deviceArgs != null)
+                args = new String[]{deviceArgs[0], args[0], args[1], args[2]};
+        } else {
+            addUsage(db, RequiredParams.TABLE_NAME, "COUNT(*)", ROW_BYTES, where, args, -1);
+        }
+        return deleteBatches(db, RequiredParams.TABLE_NAME, where, args);
+    }
+
+    /**
+     * delete matching rows of table in batches, each in its own transaction
+     */
+    private static int deleteBatches(SQLiteDatabase db, String table, String where, String[] args) {
+        String delete = "DELETE FROM " + table + " WHERE " + RequiredParams.KEY_ID + " IN (SELECT "
+                + RequiredParams.KEY_ID + " FROM " + table + " WHERE " + where + " LIMIT " + DELETE_BATCH + ")";
+        int total = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            int count;
+            db.beginTransactionNonExclusive();
+            try (SQLiteStatement statement = db.compileStatement(delete)) {
+                statement.bindAllArgsAsStrings(args);
+                count = statement.executeUpdateDelete();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            total += count;
+            if (count < DELETE_BATCH)
+                break;
+            Thread.yield(); // let the capture writer in between batches
+        }
+        return total;
+    }
+
+    /**
+     * delete blocks with (last timestamp, id) < (beforeTimestamp, beforeId) and id <= scannedBlockId in batches,
+     * usage like deleteOlder()
+     */
+    private int deleteOlderBlocks(SQLiteDatabase db, String deviceWhere, String[] deviceArgs, long beforeTimestamp, long beforeId) {
+        String ts = RequiredParams.KEY_LAST_TIMESTAMP;
+        String where = "(" + ts + " < ? OR (" + ts + " = ? AND " + RequiredParams.KEY_ID + " < ?))";
+        String[] args = {Long.toString(beforeTimestamp), Long.toString(beforeTimestamp), Long.toString(beforeId)};
+        where += " AND " + RequiredParams.KEY_ID + " <= " + scannedBlockId;
+        if (deviceWhere != null) {
+            where = deviceWhere + " AND " + where;
+            if (deviceArgs != null)
+                args = new String[]{deviceArgs[0], args[0], args[1], args[2]};
+        } else {
+            addUsage(db, RequiredParams.BLOCK_TABLE_NAME, "SUM(" + RequiredParams.KEY_COUNT + ")", BLOCK_BYTES, where, args, -1);
+        }
+        return deleteBatches(db, RequiredParams.BLOCK_TABLE_NAME, where, args);
+    }
+
+    private static String deviceWhere(String device) {
+        return device != null ? RequiredParams.KEY_DEVICE + " = ?" : RequiredParams.KEY_DEVICE + " IS NULL";
+    }
+
+    private static String[] deviceArgs(String device) {
+        return device != null ? new String[]{device} : null;
+    }
+}
@@ -27,30 +27,71 @@ public class BluetoothUtil {
      * more efficient caching of name than BluetoothDevice which always does RPC
      */
     public static class Device implements Comparable<Device> {
+        public static final int NO_RSSI = Integer.MIN_VALUE; // getRssi() if no sample yet, not ScanBatcher.RSSI_UNAVAILABLE
+
         BluetoothDevice device;
+        String address;
         String name;
+        int rssi = NO_RSSI;   // smoothed dBm when the snapshot was taken
+        int lastSeenAge = -1; // seconds since last advertisement when the snapshot was taken, -1 = unknown
 
         @SuppressLint("MissingPermission")
         public Device(BluetoothDevice device) {
+            this(device, device.getAddress(), device.getName());
+        }
+
+        /**
+         * with a name already known, e.g. from the advertisement, without the slow getName()
+         */
+        Device(BluetoothDevice device, String address, String name) {
             this.device = device;
-            this.name = device.getName();
+            this.address = address;
+            this.name = name;
+        }
+
+        /**
+         * copy with signal values, without the slow getName()
+         */
+        Device(Device other, int rssi, int lastSeenAge) {
+            this.device = other.device;
+            this.address = other.address;
+            this.name = other.name;
+            this.rssi = rssi;
+            this.lastSeenAge = lastSeenAge;
         }
 
         public BluetoothDevice getDevice() {
             return device;
         }
 
+        public String getAddress() {
+            return address;
+        }
+
         public String getName() {
             return name;
         }
 
+        public int getRssi() {
+            return rssi;
+        }
+
+        public int getLastSeenAge() {
+            return lastSeenAge;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (o instanceof Device)
-                return device.equals(((Device) o).device);
+                return address.equals(((Device) o).address);
             return false;
         }
 
+        @Override
+        public int hashCode() {
+            return address.hashCode(); // as BluetoothDevice, equal devices have equal address
+        }
+
         /**
          * sort by name, then address. sort named devices first
          */
@@ -61,11 +102,11 @@ public class BluetoothUtil {
             if (thisValid && otherValid) {
                 int ret = this.name.compareTo(other.name);
                 if (ret != 0) return ret;
-                return this.device.getAddress().compareTo(other.device.getAddress());
+                return this.address.compareTo(other.address);
             }
             if (thisValid) return -1;
             if (otherValid) return +1;
-            return this.device.getAddress().compareTo(other.device.getAddress());
+            return this.address.compareTo(other.address);
         }
 
     }
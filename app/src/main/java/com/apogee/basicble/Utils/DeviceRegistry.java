@@ -0,0 +1,85 @@
+package com.apogee.basicble.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * devices found by a scan, indexed by address
+ * - add() is O(1) and tells if the list changed, so repeated advertisements cost no UI update
+ * - addRssi() records the signal of a known device in its RssiTracker
+ * - snapshot() is an unmodifiable copy sorted by smoothed signal, as ListAdapter.submitList needs a new list per change.
+ *   Devices without signal keep the order of discovery
+ */
+public class DeviceRegistry {
+
+    private static class Entry {
+        final BluetoothUtil.Device device;
+        final RssiTracker tracker = new RssiTracker();
+
+        Entry(BluetoothUtil.Device device) {
+            this.device = device;
+        }
+    }
+
+    private final HashMap<String, Entry> devices = new HashMap<>();
+    private final ArrayList<Entry> order = new ArrayList<>(); // order of the last snapshot, new devices at the end
+
+    /**
+     * @return true if the device was not yet known
+     */
+    public boolean add(BluetoothUtil.Device device) {
+        String address = device.getAddress();
+        if (devices.containsKey(address))
+            return false;
+        Entry entry = new Entry(device);
+        devices.put(address, entry);
+        order.add(entry);
+        return true;
+    }
+
+    /**
+     * @param time ms, e.g. SystemClock.elapsedRealtime()
+     * @return false if the device is not known
+     */
+    public boolean addRssi(String address, long time, int rssi) {
+        Entry entry = devices.get(address);
+        if (entry == null)
+            return false;
+        entry.tracker.add(time, rssi);
+        return true;
+    }
+
+    public BluetoothUtil.Device get(String address) {
+        Entry entry = devices.get(address);
+        return entry == null ? null : entry.device;
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public void clear() {
+        devices.clear();
+        order.clear();
+    }
+
+    /**
+     * @param now same time base as addRssi(), for sorting out stale devices and the last seen age
+     */
+    public List<BluetoothUtil.Device> snapshot(long now) {
+        RssiTracker.sortStrongestFirst(order, entry -> entry.tracker, now);
+        List<BluetoothUtil.Device> list = new ArrayList<>(order.size());
+        for (Entry entry : order) {
+            RssiTracker tracker = entry.tracker;
+            if (tracker.size() == 0) {
+                list.add(entry.device);
+            } else {
+                list.add(new BluetoothUtil.Device(entry.device, (int) Math.round(tracker.getSmoothed()),
+                        (int) Math.max(0, (now - tracker.getLastSeen()) / 1000)));
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+}
@@ -0,0 +1,119 @@
+package com.apogee.basicble.Utils;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * signal strength of one device over time
+ * - the last CAPACITY samples are kept in a ring, older ones are overwritten
+ * - the smoothed value is an exponential moving average weighted by the time between samples,
+ *   so a device advertising ten times per second is not smoothed less than one advertising once per second
+ * - sortStrongestFirst() orders devices by the smoothed value with hysteresis, so rows don't jitter
+ * Not thread safe, used in the ScanBatcher thread only.
+ */
+public class RssiTracker {
+
+    public static final int CAPACITY = 32;
+    static final long TIME_CONSTANT = 2000;  // ms, a sample older by this has 1/e of the weight
+    static final double MIN_ALPHA = 0.02;    // weight of samples with (almost) the same time, e.g. batch results
+    static final double HYSTERESIS = 4;      // dB a device must be stronger to move ahead of another
+    static final long STALE = 10000;         // ms without samples after which a device is sorted last
+
+    private final int[] rssi = new int[CAPACITY];
+    private final long[] time = new long[CAPACITY];
+    private int head;  // next write position
+    private int count;
+    private double smoothed = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param time ms, e.g. SystemClock.elapsedRealtime(). Samples older than the last one are treated as simultaneous
+     * @param rssi dBm
+     */
+    public void add(long time, int rssi) {
+        if (count == 0) {
+            smoothed = rssi;
+        } else {
+            long last = getLastSeen();
+            if (time < last)
+                time = last;
+            double alpha = Math.max(MIN_ALPHA, 1 - Math.exp(-(time - last) / (double) TIME_CONSTANT));
+            smoothed += alpha * (rssi - smoothed);
+        }
+        this.rssi[head] = rssi;
+        this.time[head] = time;
+        head = (head + 1) % CAPACITY;
+        if (count < CAPACITY)
+            count++;
+    }
+
+    /**
+     * number of samples in the ring
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @param i 0 = oldest sample in the ring
+     */
+    public int getRssi(int i) {
+        return rssi[index(i)];
+    }
+
+    public long getTime(int i) {
+        return time[index(i)];
+    }
+
+    /**
+     * @return dBm, NEGATIVE_INFINITY without samples
+     */
+    public double getSmoothed() {
+        return smoothed;
+    }
+
+    /**
+     * @return time of the last sample, Long.MIN_VALUE without samples
+     */
+    public long getLastSeen() {
+        return count == 0 ? Long.MIN_VALUE : time[(head + CAPACITY - 1) % CAPACITY];
+    }
+
+    /**
+     * smoothed value used for sorting, NEGATIVE_INFINITY if not seen for STALE ms
+     */
+    double getSignal(long now) {
+        return count == 0 || now - getLastSeen() > STALE ? Double.NEGATIVE_INFINITY : smoothed;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("sample " + i + " of " + count);
+        return (head - count + i + CAPACITY) % CAPACITY;
+    }
+
+    /**
+     * insertion sort, strongest first, with hysteresis. Each item looks back over the predecessors weaker than it
+     * and is inserted ahead of the furthest one it beats by more than HYSTERESIS dB. All rows between that one and
+     * the item move back by one, also those within HYSTERESIS of it: -70, -68, -65 becomes -65, -70, -68, the -65 row
+     * goes ahead of -70 and so also ahead of -68. An item beating no predecessor by more than HYSTERESIS stays where it is,
+     * so rows of similar signal don't swap on every call. The list is usually almost sorted from the last call,
+     * so this is about O(n)
+     */
+    public static <T> void sortStrongestFirst(List<T> items, Function<T, RssiTracker> tracker, long now) {
+        for (int i = 1; i < items.size(); i++) {
+            T item = items.get(i);
+            double signal = tracker.apply(item).getSignal(now);
+            int target = i;
+            for (int k = i - 1; k >= 0; k--) {
+                double other = tracker.apply(items.get(k)).getSignal(now);
+                if (signal > other + HYSTERESIS)
+                    target = k;  // clearly stronger, goes ahead of k
+                else if (signal <= other)
+                    break;       // k is at least as strong, stop here
+            }
+            for (int j = i; j > target; j--)
+                items.set(j, items.get(j - 1));
+            items.set(target, item);
+        }
+    }
+}
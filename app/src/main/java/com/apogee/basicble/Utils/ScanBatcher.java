@@ -0,0 +1,209 @@
+package com.apogee.basicble.Utils;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * decouple UI updates from the advertisement rate
+ * - add() can be called from scan callbacks at any rate, it only records the advertisement in a pending list
+ * - every interval the background thread merges pending advertisements into the DeviceRegistry
+ *   and, if the list or a signal changed, publishes a snapshot on the callback executor.
+ *   While running, a snapshot is also published every AGE_INTERVAL to update the last seen age
+ * So the list is updated at most 1000 / interval times per second, however busy the air is.
+ * The name usually comes with the advertisement. Only if it doesn't, getName(), a binder call, is used,
+ * in the background thread and at most once per address and scan: addresses without a name either way
+ * are remembered like rejected ones until clear(), unless a later advertisement carries a name.
+ */
+public class ScanBatcher {
+
+    public interface Filter {
+        boolean accept(BluetoothUtil.Device device);
+    }
+
+    public interface Listener {
+        void onSnapshot(List<BluetoothUtil.Device> devices);
+    }
+
+    public static final int RSSI_UNAVAILABLE = 127; // input to add(), as ScanResult.getRssi() if not available
+    private static final long AGE_INTERVAL = 1000;
+
+    static class Advertisement {
+        final BluetoothDevice device;
+        final String address;
+        final String name;
+        final int rssi;
+        final long time;
+
+        Advertisement(BluetoothDevice device, String address, String name, int rssi, long time) {
+            this.device = device;
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.time = time;
+        }
+    }
+
+    private final long interval;
+    private final Filter filter;
+    private final Executor callbackExecutor;
+    private final Listener listener;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Runnable tick = this::tick;
+    final DeviceRegistry registry = new DeviceRegistry(); // background thread only
+    private final HashSet<String> rejected = new HashSet<>(); // addresses with a name not accepted by filter, background thread only
+    private final HashSet<String> unnamed = new HashSet<>();  // addresses not accepted without name, background thread only
+    private ArrayList<Advertisement> pending = new ArrayList<>();  // guarded by this
+    private ArrayList<Advertisement> merging = new ArrayList<>();  // background thread only
+    private boolean running; // guarded by this
+    private long lastPublish; // background thread only
+
+    /**
+     * @param interval ms between snapshots, e.g. 250 for 4 Hz
+     */
+    public ScanBatcher(long interval, Filter filter, Executor callbackExecutor, Listener listener) {
+        this(interval, filter, callbackExecutor, listener, new HandlerThread("ScanBatcher"));
+    }
+
+    /**
+     * @param thread null in unit tests, which call merge() directly and can't use Handler
+     */
+    ScanBatcher(long interval, Filter filter, Executor callbackExecutor, Listener listener, HandlerThread thread) {
+        this.interval = interval;
+        this.filter = filter;
+        this.callbackExecutor = callbackExecutor;
+        this.listener = listener;
+        this.thread = thread;
+        if (thread != null)
+            thread.start();
+        handler = thread == null ? null : new Handler(thread.getLooper());
+    }
+
+    /**
+     * record an advertisement, ignored while not started
+     *
+     * @param name as advertised, e.g. ScanRecord.getDeviceName(), null if not included
+     * @param rssi dBm, RSSI_UNAVAILABLE if not available
+     * @param time ms in SystemClock.elapsedRealtime() time base, e.g. ScanResult.getTimestampNanos() / 1000000
+     */
+    public void add(BluetoothDevice device, String name, int rssi, long time) {
+        Advertisement advertisement = new Advertisement(device, device.getAddress(), name, rssi, time);
+        synchronized (this) {
+            if (running)
+                pending.add(advertisement);
+        }
+    }
+
+    /**
+     * start publishing snapshots
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        handler.postDelayed(tick, interval);
+    }
+
+    /**
+     * stop publishing after the pending devices
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        handler.removeCallbacks(tick);
+        handler.post(tick);
+    }
+
+    /**
+     * forget all devices and publish an empty list
+     */
+    public void clear() {
+        synchronized (this) {
+            pending.clear();
+        }
+        handler.post(() -> {
+            registry.clear();
+            rejected.clear();
+            unnamed.clear();
+            publish(SystemClock.elapsedRealtime());
+        });
+    }
+
+    public void shutdown() {
+        stop();
+        thread.quitSafely();
+    }
+
+    private void tick() {
+        ArrayList<Advertisement> advertisements;
+        boolean running;
+        synchronized (this) {
+            advertisements = pending;
+            pending = merging;
+            merging = advertisements;
+            running = this.running;
+            if (running)
+                handler.postDelayed(tick, interval);
+        }
+        boolean changed = merge(advertisements);
+        advertisements.clear();
+        long now = SystemClock.elapsedRealtime();
+        if (changed || (running && now - lastPublish >= AGE_INTERVAL))
+            publish(now);
+    }
+
+    /**
+     * add advertisements to the registry, background thread only
+     *
+     * @return true if a device or signal was added
+     */
+    boolean merge(List<Advertisement> advertisements) {
+        boolean changed = false;
+        for (Advertisement advertisement : advertisements) {
+            String address = advertisement.address;
+            if (registry.get(address) == null) {
+                String name = advertisement.name;
+                if (rejected.contains(address) || (name == null && unnamed.contains(address)))
+                    continue; // repeated advertisements, also within this batch, are skipped before the slow getName()
+                if (name == null)
+                    name = getName(advertisement.device);
+                BluetoothUtil.Device device = new BluetoothUtil.Device(advertisement.device, address, name);
+                if (filter.accept(device)) {
+                    changed |= registry.add(device);
+                } else {
+                    if (name != null)
+                        rejected.add(address);
+                    else
+                        unnamed.add(address); // might pass once an advertisement carries the name
+                    continue;
+                }
+            }
+            if (advertisement.rssi != RSSI_UNAVAILABLE)
+                changed |= registry.addRssi(address, advertisement.time, advertisement.rssi);
+        }
+        return changed;
+    }
+
+    /**
+     * binder call, replaced in unit tests
+     */
+    @SuppressLint("MissingPermission")
+    String getName(BluetoothDevice device) {
+        return device.getName();
+    }
+
+    private void publish(long now) {
+        lastPublish = now;
+        List<BluetoothUtil.Device> snapshot = registry.snapshot(now);
+        callbackExecutor.execute(() -> listener.onSnapshot(snapshot));
+    }
+}
@@ -0,0 +1,70 @@
+package com.apogee.basicble.Utils;
+
+/**
+ * fixed capacity ring, adding to a full ring drops the oldest element
+ * index 0 is the oldest element, size()-1 the newest
+ */
+public final class ScrollbackRing<T> {
+
+    private final Object[] items;
+    private int head; // index of oldest element
+    private int size;
+
+    public ScrollbackRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity < 1");
+        items = new Object[capacity];
+    }
+
+    /**
+     * @return true if the oldest element was dropped to make room
+     */
+    public boolean add(T item) {
+        if (size < items.length) {
+            items[(head + size) % items.length] = item;
+            size++;
+            return false;
+        }
+        items[head] = item;
+        head = (head + 1) % items.length;
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        return (T) items[(head + index) % items.length];
+    }
+
+    /**
+     * remove the newest element
+     */
+    public T removeLast() {
+        if (size == 0)
+            return null;
+        T item = get(size - 1);
+        items[(head + size - 1) % items.length] = null;
+        size--;
+        return item;
+    }
+
+    public T last() {
+        return size == 0 ? null : get(size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    public void clear() {
+        for (int i = 0; i < items.length; i++)
+            items[i] = null;
+        head = 0;
+        size = 0;
+    }
+}
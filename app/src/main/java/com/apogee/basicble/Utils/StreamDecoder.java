@@ -0,0 +1,57 @@
+package com.apogee.basicble.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * stateful UTF-8 decoder for the notification stream
+ * - a multi-byte character split over two notifications is kept until the next chunk completes it
+ * - input and output buffers are reused, they only grow if a chunk is larger than any before
+ * - malformed input is replaced by U+FFFD instead of failing
+ */
+public final class StreamDecoder {
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer in = ByteBuffer.allocate(512);   // write mode, holds incomplete sequence between calls
+    private CharBuffer out = CharBuffer.allocate(512);
+
+    /**
+     * decode next chunk
+     *
+     * @return decoded chars, backed by a reused buffer that is only valid until the next call
+     */
+    public CharBuffer decode(byte[] data, int off, int len) {
+        if (in.remaining() < len) {
+            ByteBuffer bigger = ByteBuffer.allocate(in.position() + len);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+        in.put(data, off, len);
+        in.flip();
+        if (out.capacity() < in.remaining()) // UTF-8 never yields more chars than bytes
+            out = CharBuffer.allocate(in.capacity());
+        out.clear();
+        decoder.decode(in, out, false);
+        in.compact();
+        out.flip();
+        return out;
+    }
+
+    public CharBuffer decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * drop an incomplete sequence, e.g. after reconnect
+     */
+    public void reset() {
+        decoder.reset();
+        in.clear();
+    }
+}
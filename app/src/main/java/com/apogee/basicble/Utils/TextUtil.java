@@ -10,7 +10,9 @@ import android.widget.TextView;
 
 import androidx.annotation.ColorInt;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 
 public final class TextUtil {
 
@@ -20,36 +22,131 @@ public final class TextUtil {
     public final static String newline_crlf = "\r\n";
     final static String newline_lf = "\n";
 
+    /*
+     * hex codec lookup tables
+     * HEX_PAIRS holds the 2 upper case digits for each byte value,
+     * HEX_VALUES the nibble value for each ASCII char or -1 if it is no hex digit
+     */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX_PAIRS = new char[512];
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[2 * i] = HEX_DIGITS[i >>> 4];
+            HEX_PAIRS[2 * i + 1] = HEX_DIGITS[i & 0xf];
+        }
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++)
+            HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
     public static byte[] fromHexString(final CharSequence s) {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        byte b = 0;
-        int nibble = 0;
-        for (int pos = 0; pos < s.length(); pos++) {
-            if (nibble == 2) {
-                buf.write(b);
-                nibble = 0;
-                b = 0;
-            }
-            int c = s.charAt(pos);
-            if (c >= '0' && c <= '9') {
-                nibble++;
-                b *= 16;
-                b += c - '0';
-            }
-            if (c >= 'A' && c <= 'F') {
-                nibble++;
-                b *= 16;
-                b += c - 'A' + 10;
+        byte[] buf = new byte[(s.length() + 1) / 2];
+        int len = decodeHex(s, 0, s.length(), buf, 0);
+        return len == buf.length ? buf : Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * decode hex digits into caller supplied buffer, other chars are skipped.
+     * A trailing single digit is stored as its own byte, like fromHexString always did.
+     * dst needs room for (end - start + 1) / 2 bytes in the worst case
+     *
+     * @return number of bytes written
+     */
+    public static int decodeHex(final CharSequence s, int start, int end, byte[] dst, int dstOff) {
+        int pos = dstOff;
+        int b = 0;
+        boolean high = true;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int v = c < 128 ? HEX_VALUES[c] : -1;
+            if (v < 0)
+                continue;
+            if (high) {
+                b = v;
+            } else {
+                dst[pos++] = (byte) (b << 4 | v);
             }
-            if (c >= 'a' && c <= 'f') {
-                nibble++;
-                b *= 16;
-                b += c - 'a' + 10;
+            high = !high;
+        }
+        if (!high)
+            dst[pos++] = (byte) b;
+        return pos - dstOff;
+    }
+
+    /**
+     * decode hex digits into the remaining space of dst, position is advanced
+     *
+     * @return number of bytes written
+     */
+    public static int decodeHex(final CharSequence s, ByteBuffer dst) {
+        if (dst.hasArray() && dst.remaining() >= (s.length() + 1) / 2) {
+            int len = decodeHex(s, 0, s.length(), dst.array(), dst.arrayOffset() + dst.position());
+            dst.position(dst.position() + len);
+            return len;
+        }
+        int start = dst.position();
+        int b = 0;
+        boolean high = true;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            int v = c < 128 ? HEX_VALUES[c] : -1;
+            if (v < 0)
+                continue;
+            if (high) {
+                b = v;
+            } else {
+                dst.put((byte) (b << 4 | v));
             }
+            high = !high;
+        }
+        if (!high)
+            dst.put((byte) b);
+        return dst.position() - start;
+    }
+
+    /**
+     * encode bytes as space separated upper case hex into caller supplied buffer
+     * dst needs room for 3 * len - 1 chars
+     *
+     * @return number of chars written
+     */
+    public static int encodeHex(final byte[] src, int off, int len, char[] dst, int dstOff) {
+        if (len <= 0)
+            return 0;
+        int pos = dstOff;
+        int b = src[off] & 0xff;
+        dst[pos++] = HEX_PAIRS[2 * b];
+        dst[pos++] = HEX_PAIRS[2 * b + 1];
+        for (int i = off + 1; i < off + len; i++) {
+            b = src[i] & 0xff;
+            dst[pos++] = ' ';
+            dst[pos++] = HEX_PAIRS[2 * b];
+            dst[pos++] = HEX_PAIRS[2 * b + 1];
         }
-        if (nibble > 0)
-            buf.write(b);
-        return buf.toByteArray();
+        return pos - dstOff;
+    }
+
+    /**
+     * encode the remaining bytes of src, position is advanced
+     *
+     * @return number of chars written
+     */
+    public static int encodeHex(ByteBuffer src, char[] dst, int dstOff) {
+        int pos = dstOff;
+        while (src.hasRemaining()) {
+            int b = src.get() & 0xff;
+            if (pos > dstOff)
+                dst[pos++] = ' ';
+            dst[pos++] = HEX_PAIRS[2 * b];
+            dst[pos++] = HEX_PAIRS[2 * b + 1];
+        }
+        return pos - dstOff;
     }
 
     public static String toHexString(final byte[] buf) {
@@ -57,9 +154,10 @@ public final class TextUtil {
     }
 
     static String toHexString(final byte[] buf, int begin, int end) {
-        StringBuilder sb = new StringBuilder(3 * (end - begin));
-        toHexString(sb, buf, begin, end);
-        return sb.toString();
+        if (end <= begin)
+            return "";
+        char[] chars = new char[3 * (end - begin) - 1];
+        return new String(chars, 0, encodeHex(buf, begin, end - begin, chars, 0));
     }
 
     public static void toHexString(StringBuilder sb, final byte[] buf) {
@@ -67,18 +165,16 @@ public final class TextUtil {
     }
 
     static void toHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        if (end <= begin)
+            return;
+        sb.ensureCapacity(sb.length() + 3 * (end - begin));
+        boolean space = sb.length() > 0;
         for (int pos = begin; pos < end; pos++) {
-            if (sb.length() > 0)
+            if (space)
                 sb.append(' ');
-            int c;
-            c = (buf[pos] & 0xff) / 16;
-            if (c >= 10) c += 'A' - 10;
-            else c += '0';
-            sb.append((char) c);
-            c = (buf[pos] & 0xff) % 16;
-            if (c >= 10) c += 'A' - 10;
-            else c += '0';
-            sb.append((char) c);
+            space = true;
+            int b = buf[pos] & 0xff;
+            sb.append(HEX_PAIRS[2 * b]).append(HEX_PAIRS[2 * b + 1]);
         }
     }
 
@@ -86,43 +182,143 @@ public final class TextUtil {
      * use https://en.wikipedia.org/wiki/Caret_notation to avoid invisible control characters
      */
     public static CharSequence toCaretString(CharSequence s, boolean keepNewline) {
-        return toCaretString(s, keepNewline, s.length());
+        return toCaretString(s, keepNewline, s.length(), null);
     }
 
-       /*The code starts by creating a SpannableStringBuilder object.
-        *The code then iterates through the string, checking if the
-        *character at that position is less than 32 and not a newline.
+    /**
+     * same as above, but writes into a reused builder, the result is only valid until the next call
+     */
+    public static CharSequence toCaretString(CharSequence s, boolean keepNewline, SpannableStringBuilder out) {
+        return toCaretString(s, keepNewline, s.length(), out);
+    }
+
+       /*The code makes a single pass through the string.
+        *Text between control characters is copied in bulk, adjacent control
+        *characters share one background span, so noisy binary input doesn't
+        *produce one span per byte. Input without control characters is returned as is.
        */
 
-    static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length) {
-        boolean found = false;
+    static CharSequence toCaretString(CharSequence s, boolean keepNewline, int length, SpannableStringBuilder out) {
+        SpannableStringBuilder sb = null;
+        int copied = 0;    // chars of s before this index are already in sb
+        int runStart = -1; // start of current caret run in sb, -1 if none
         for (int pos = 0; pos < length; pos++) {
-            if (s.charAt(pos) < 32 && (!keepNewline || s.charAt(pos) != '\n')) {
-                found = true;
-                break;
+            char c = s.charAt(pos);
+            if (c < 32 && (!keepNewline || c != '\n')) {
+                if (sb == null) {
+                    sb = out != null ? out : new SpannableStringBuilder();
+                    sb.clearSpans();
+                    sb.clear();
+                }
+                if (runStart < 0) {
+                    sb.append(s, copied, pos);
+                    runStart = sb.length();
+                }
+                sb.append('^');
+                sb.append((char) (c + 64));
+                copied = pos + 1;
+            } else if (runStart >= 0) {
+                sb.setSpan(new BackgroundColorSpan(caretBackground), runStart, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                runStart = -1;
             }
         }
-        if (!found)
+        if (sb == null)
             return s;
-        SpannableStringBuilder sb = new SpannableStringBuilder();
-        for (int pos = 0; pos < length; pos++)
-            if (s.charAt(pos) < 32 && (!keepNewline || s.charAt(pos) != '\n')) {
-                sb.append('^');
-                sb.append((char) (s.charAt(pos) + 64));
-                sb.setSpan(new BackgroundColorSpan(caretBackground), sb.length() - 2, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            } else {
-                sb.append(s.charAt(pos));
-            }
+        if (runStart >= 0)
+            sb.setSpan(new BackgroundColorSpan(caretBackground), runStart, sb.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        sb.append(s, copied, length);
         return sb;
     }
 
 
+    /**
+     * hex dump of received data, one row per 16 bytes:
+     * <pre>00000010  24 47 4E 47 47 41 2C 31 32 33 35 31 39 2E 30 30  |$GNGGA,123519.00|</pre>
+     * Offsets count from the first byte formatted. Each chunk starts a new row, so data is shown
+     * as soon as it arrives instead of waiting for a full row.
+     * Rows are written with lookup tables into a reused char buffer, the returned CharSequence
+     * is only valid until the next call.
+     */
+    public static final class HexDumpFormatter {
+
+        private static final int BYTES_PER_ROW = 16;
+        private static final int HEX_START = 10;                                 // 8 digit offset + 2 spaces
+        private static final int ASCII_START = HEX_START + 3 * BYTES_PER_ROW + 1; // hex + 1 extra space
+        static final int ROW_LENGTH = ASCII_START + BYTES_PER_ROW + 3;           // |ascii|\n
+        private static final char[] PRINTABLE = new char[256];   // ascii column char per byte value
+
+        static {
+            for (int i = 0; i < 256; i++)
+                PRINTABLE[i] = i >= 32 && i < 127 ? (char) i : '.';
+        }
+
+        private char[] buffer = new char[ROW_LENGTH * 16];
+        private CharBuffer view = CharBuffer.wrap(buffer);
+        private long offset;
+
+        public void reset() {
+            offset = 0;
+        }
+
+        public CharSequence format(byte[] data, int off, int len) {
+            int rows = (len + BYTES_PER_ROW - 1) / BYTES_PER_ROW;
+            if (rows * ROW_LENGTH > buffer.length) { // grows only for unusually large chunks
+                buffer = new char[rows * ROW_LENGTH];
+                view = CharBuffer.wrap(buffer);
+            }
+            final char[] buf = buffer;
+            int pos = 0;
+            for (int row = 0; row < rows; row++) {
+                int rowOff = off + row * BYTES_PER_ROW;
+                int rowLen = Math.min(BYTES_PER_ROW, off + len - rowOff);
+                long o = offset + row * BYTES_PER_ROW;
+                for (int i = 7; i >= 0; i--) {
+                    buf[pos + i] = HEX_DIGITS[(int) (o & 0xf)];
+                    o >>>= 4;
+                }
+                buf[pos + 8] = ' ';
+                buf[pos + 9] = ' ';
+                int h = pos + HEX_START;
+                int a = pos + ASCII_START + 1;
+                for (int i = 0; i < BYTES_PER_ROW; i++) {
+                    if (i < rowLen) {
+                        int b = data[rowOff + i] & 0xff;
+                        buf[h] = HEX_PAIRS[2 * b];
+                        buf[h + 1] = HEX_PAIRS[2 * b + 1];
+                        buf[a++] = PRINTABLE[b];
+                    } else {
+                        buf[h] = ' ';
+                        buf[h + 1] = ' ';
+                    }
+                    buf[h + 2] = ' ';
+                    h += 3;
+                }
+                buf[h] = ' ';
+                buf[pos + ASCII_START] = '|';
+                buf[a++] = '|';
+                buf[a++] = '\n';
+                pos = a;
+            }
+            offset += len;
+            view.clear();
+            view.limit(pos);
+            return view;
+        }
+    }
+
+    /**
+     * keep hex input formatted as upper case digit pairs separated by space
+     * Only the text from the pair containing the first edited char is normalized,
+     * the formatted text before it is left as is. Typing or pasting at the end therefore
+     * only touches the new chars, an edit in the middle re-groups the tail in one linear pass.
+     */
     public static class HexWatcher implements TextWatcher {
 
         private final TextView view;
         private final StringBuilder sb = new StringBuilder();
         private boolean self = false;
         private boolean enabled = false;
+        private int editStart = Integer.MAX_VALUE; // first changed index since last afterTextChanged
 
         public HexWatcher(TextView view) {
             this.view = view;
@@ -135,6 +331,7 @@ public final class TextUtil {
                 view.setInputType(InputType.TYPE_CLASS_TEXT + InputType.TYPE_TEXT_FLAG_NO_SUGGESTIONS);
             }
             enabled = enable;
+            editStart = 0; // text may not be formatted yet
         }
 
         @Override
@@ -143,28 +340,45 @@ public final class TextUtil {
 
         @Override
         public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (!self)
+                editStart = Math.min(editStart, start);
         }
 
         @Override
         public void afterTextChanged(Editable s) {
+            int start = editStart;
+            editStart = Integer.MAX_VALUE;
             if (!enabled || self)
                 return;
+            int length = s.length();
+            start = Math.min(start, length);
+
+            // text before start is formatted: "HH HH HH", every 3rd char is a space
+            int digits = start - start / 3;
+            int from = Math.min(3 * (digits / 2), start); // begin of pair containing start
+            if (from > 0 && s.charAt(from - 1) == ' ')
+                from--; // separator is re-added only if a digit follows
+            boolean space = from > 0 && s.charAt(from - 1) != ' ';
 
-            sb.delete(0, sb.length());
-            int i;
-            for (i = 0; i < s.length(); i++) {
+            sb.setLength(0);
+            int count = 0;
+            for (int i = from; i < length; i++) {
                 char c = s.charAt(i);
-                if (c >= '0' && c <= '9') sb.append(c);
-                if (c >= 'A' && c <= 'F') sb.append(c);
-                if (c >= 'a' && c <= 'f') sb.append((char) (c + 'A' - 'a'));
+                int v = c < 128 ? HEX_VALUES[c] : -1;
+                if (v < 0)
+                    continue;
+                if (count % 2 == 0 && (count > 0 || space))
+                    sb.append(' ');
+                sb.append(HEX_DIGITS[v]);
+                count++;
             }
-            for (i = 2; i < sb.length(); i += 3)
-                sb.insert(i, ' ');
-            final String s2 = sb.toString();
 
-            if (!s2.equals(s.toString())) {
+            boolean same = sb.length() == length - from;
+            for (int i = 0; same && i < sb.length(); i++)
+                same = sb.charAt(i) == s.charAt(from + i);
+            if (!same) {
                 self = true;
-                s.replace(0, s.length(), s2);
+                s.replace(from, length, sb);
                 self = false;
             }
         }
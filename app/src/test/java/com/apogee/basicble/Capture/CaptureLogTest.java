@@ -0,0 +1,219 @@
+package com.apogee.basicble.Capture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes CaptureLog segments into a temporary folder and reads them back with CaptureLog.Reader.
+ */
+public class CaptureLogTest {
+
+    private static final long T0 = 1700000000000L * 1000000L; // epoch ns
+    private static final long MS = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String payload(CaptureLog.Reader reader) {
+        ByteBuffer payload = reader.getPayload();
+        byte[] data = new byte[payload.remaining()];
+        payload.get(data);
+        return new String(data, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        File dir = folder.newFolder();
+        try (CaptureLog log = new CaptureLog(dir)) {
+            byte[] tx = bytes("xxCMDxx");
+            log.append(T0, CaptureLog.TYPE_SEND, tx, 2, 3);
+            log.append(T0 + MS, CaptureLog.TYPE_RECEIVE, bytes("OK"), 0, 2);
+            log.append(T0 + 2 * MS, CaptureLog.TYPE_RECEIVE, new byte[0], 0, 0);
+            try (CaptureLog.Reader reader = log.openReader()) { // flushes queued records
+                assertTrue(reader.next());
+                assertEquals(T0, reader.getTime());
+                assertEquals(CaptureLog.TYPE_SEND, reader.getType());
+                assertEquals("CMD", payload(reader));
+                assertTrue(reader.next());
+                assertEquals(T0 + MS, reader.getTime());
+                assertEquals(CaptureLog.TYPE_RECEIVE, reader.getType());
+                assertEquals(2, reader.getLength());
+                assertEquals("OK", payload(reader));
+                assertTrue(reader.next());
+                assertEquals(0, reader.getLength());
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test
+    public void rotationDropsOldestSegments() throws IOException {
+        File dir = folder.newFolder();
+        int record = CaptureLog.HEADER + 4;
+        try (CaptureLog log = new CaptureLog(dir, 10 * record, 3)) { // 10 records per segment
+            for (int i = 0; i < 100; i++)
+                log.append(T0 + i * MS, CaptureLog.TYPE_RECEIVE, bytes(String.format("%04d", i)), 0, 4);
+        }
+        File[] segments = CaptureLog.listSegments(dir);
+        assertEquals(3, segments.length);
+        assertEquals(T0 + 70 * MS, CaptureLog.segmentTime(segments[0]));
+        for (File segment : segments) {
+            assertEquals(10 * record, segment.length());
+            assertTrue(CaptureLog.indexFile(segment).exists());
+        }
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(dir)) {
+            for (int i = 70; i < 100; i++) {
+                assertTrue(reader.next());
+                assertEquals(String.format("%04d", i), payload(reader));
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void reopenAppendsNewSegment() throws IOException {
+        File dir = folder.newFolder();
+        try (CaptureLog log = new CaptureLog(dir)) {
+            log.append(T0, CaptureLog.TYPE_RECEIVE, bytes("a"), 0, 1);
+        }
+        try (CaptureLog log = new CaptureLog(dir)) {
+            log.append(T0 + MS, CaptureLog.TYPE_RECEIVE, bytes("b"), 0, 1);
+        }
+        assertEquals(2, CaptureLog.listSegments(dir).length);
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(dir)) {
+            assertTrue(reader.next());
+            assertEquals("a", payload(reader));
+            assertTrue(reader.next());
+            assertEquals("b", payload(reader));
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void seekUsesIndex() throws IOException {
+        File dir = folder.newFolder();
+        int count = 2000;
+        // ~2 MB in two segments, an index entry every ~64 records. Ring large enough for all, nothing dropped
+        try (CaptureLog log = new CaptureLog(dir, 1024 * 1024, 10, 4 * 1024 * 1024)) {
+            byte[] data = new byte[1000];
+            for (int i = 0; i < count; i++) {
+                ByteBuffer.wrap(data).putInt(i); // copied by append, so reused
+                log.append(T0 + i * MS, CaptureLog.TYPE_RECEIVE, data, 0, data.length);
+            }
+        }
+        File[] segments = CaptureLog.listSegments(dir);
+        assertEquals(2, segments.length);
+        assertTrue(CaptureLog.indexFile(segments[0]).length() >= 10 * CaptureLog.INDEX_ENTRY);
+
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(dir)) {
+            for (int i : new int[]{0, 1, 63, 64, 65, 1000, 1047, 1048, 1999}) {
+                assertTrue(reader.seek(T0 + i * MS));
+                assertTrue(reader.next());
+                assertEquals(T0 + i * MS, reader.getTime());
+                assertEquals(i, reader.getPayload().getInt(reader.getPayload().position()));
+            }
+            assertTrue("between records", reader.seek(T0 + 500 * MS - 1));
+            assertTrue(reader.next());
+            assertEquals(T0 + 500 * MS, reader.getTime());
+            assertTrue(reader.next());
+            assertEquals("continues after seek", T0 + 501 * MS, reader.getTime());
+            assertTrue("before first", reader.seek(0));
+            assertTrue(reader.next());
+            assertEquals(T0, reader.getTime());
+            assertFalse("after last", reader.seek(T0 + count * MS));
+        }
+    }
+
+    @Test
+    public void timesNeverDecrease() throws Exception {
+        File dir = folder.newFolder();
+        int threads = 4;
+        int perThread = 2000;
+        try (CaptureLog log = new CaptureLog(dir, 64 * 1024, 1000)) {
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                byte[] data = bytes("t" + t);
+                writers[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < perThread; i++)
+                            log.append(CaptureLog.TYPE_RECEIVE, data);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers)
+                writer.join();
+        }
+        int count = 0;
+        long last = 0;
+        try (CaptureLog.Reader reader = new CaptureLog.Reader(dir)) {
+            while (reader.next()) {
+                assertTrue("time " + reader.getTime() + " after " + last, reader.getTime() >= last);
+                last = reader.getTime();
+                count++;
+            }
+        }
+        assertEquals(threads * perThread, count);
+    }
+
+    @Test
+    public void fullRingDropsRecords() throws IOException {
+        File dir = folder.newFolder();
+        int record = CaptureLog.HEADER + 100;
+        try (CaptureLog log = new CaptureLog(dir, 1024 * 1024, 1, 3 * record)) {
+            synchronized (log) { // writer can't take records meanwhile
+                for (int i = 0; i < 10; i++)
+                    log.append(T0 + i * MS, CaptureLog.TYPE_RECEIVE, new byte[100], 0, 100);
+            }
+            assertEquals(7, log.getDropped());
+            log.flush(); // ring empty again
+            log.append(T0 + 10 * MS, CaptureLog.TYPE_RECEIVE, bytes("x"), 0, 1);
+            try (CaptureLog.Reader reader = log.openReader()) {
+                for (int i = 0; i < 3; i++) {
+                    assertTrue(reader.next());
+                    assertEquals(T0 + i * MS, reader.getTime());
+                }
+                assertTrue(reader.next());
+                assertEquals("x", payload(reader));
+                assertFalse(reader.next());
+            }
+        }
+    }
+
+    @Test
+    public void appendAfterClose() throws IOException {
+        CaptureLog log = new CaptureLog(folder.newFolder());
+        log.close();
+        log.close();
+        log.flush();
+        try {
+            log.append(CaptureLog.TYPE_RECEIVE, bytes("x"));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void recordLargerThanSegment() throws IOException {
+        try (CaptureLog log = new CaptureLog(folder.newFolder(), 64, 1)) {
+            log.append(CaptureLog.TYPE_RECEIVE, new byte[64]);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.apogee.basicble.Capture;
+
+import com.apogee.basicble.CommunicationLibrary.SerialListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays captures written by CaptureLog into a recording SerialListener, without Bluetooth or Android classes.
+ * Timing is checked with a fake clock that records the requested delays, not with the wall clock.
+ */
+public class ReplaySourceTest {
+
+    private static final long T0 = 1700000000000L * 1000000L; // epoch ns
+    private static final long MS = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * virtual time, advanced only by sleep()
+     */
+    private static class FakeClock implements ReplaySource.Clock {
+        long now = 123456789L;
+        long oversleep;                              // added to each sleep, e.g. a busy scheduler
+        final List<Long> sleeps = new ArrayList<>(); // requested delays
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long nanos) {
+            sleeps.add(nanos);
+            now += nanos + oversleep;
+        }
+    }
+
+    private static class Recorder implements SerialListener {
+        final List<String> events = new ArrayList<>();
+        final List<Long> times = new ArrayList<>(); // clock time of each read
+        final ReplaySource.Clock clock;
+
+        Recorder(ReplaySource.Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public void onSerialConnect() {
+            events.add("connect");
+        }
+
+        @Override
+        public void onSerialConnectError(Exception e) {
+            events.add("connect error");
+        }
+
+        @Override
+        public void onSerialRead(byte[] data) {
+            events.add(new String(data, StandardCharsets.US_ASCII));
+            times.add(clock.nanoTime());
+        }
+
+        @Override
+        public void onSerialRead(ArrayDeque<byte[]> datas) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onSerialIoError(Exception e) {
+            events.add(e instanceof EOFException ? "eof" : "error " + e);
+        }
+    }
+
+    private File record(int count, long intervalNanos, int segmentSize) throws IOException {
+        File dir = folder.newFolder();
+        try (CaptureLog log = new CaptureLog(dir, segmentSize, 100)) {
+            for (int i = 0; i < count; i++) {
+                byte[] rx = ("rx" + i).getBytes(StandardCharsets.US_ASCII);
+                byte[] tx = ("tx" + i).getBytes(StandardCharsets.US_ASCII);
+                log.append(T0 + i * intervalNanos, CaptureLog.TYPE_SEND, tx, 0, tx.length);
+                log.append(T0 + i * intervalNanos + 1, CaptureLog.TYPE_RECEIVE, rx, 0, rx.length);
+            }
+        }
+        return dir;
+    }
+
+    @Test
+    public void asFastAsPossible() throws IOException {
+        int count = 5000;
+        File dir = record(count, 1000 * MS, 4096); // 1s apart, many small segments
+        FakeClock clock = new FakeClock();
+        Recorder recorder = new Recorder(clock);
+        ReplaySource source = new ReplaySource(dir, ReplaySource.AS_FAST_AS_POSSIBLE);
+        source.setClock(clock);
+        source.run(recorder);
+        assertTrue("no delays", clock.sleeps.isEmpty());
+
+        assertEquals(count + 2, recorder.events.size());
+        assertEquals("connect", recorder.events.get(0));
+        for (int i = 0; i < count; i++)
+            assertEquals("rx" + i, recorder.events.get(i + 1));
+        assertEquals("eof", recorder.events.get(count + 1));
+    }
+
+    @Test
+    public void originalAndScaledTiming() throws IOException {
+        File dir = record(11, 20 * MS, CaptureLog.DEFAULT_SEGMENT_SIZE); // 200 ms recording
+        for (double speed : new double[]{1, 4}) {
+            FakeClock clock = new FakeClock();
+            Recorder recorder = new Recorder(clock);
+            ReplaySource source = new ReplaySource(dir, speed);
+            source.setClock(clock);
+            source.run(recorder);
+            assertEquals(13, recorder.events.size());
+            assertEquals("no delay before first read", 10, clock.sleeps.size());
+            for (long sleep : clock.sleeps)
+                assertEquals("speed " + speed, (long) (20 * MS / speed), sleep);
+            for (int i = 0; i < 11; i++)
+                assertEquals((long) (i * 20 * MS / speed), recorder.times.get(i) - recorder.times.get(0));
+        }
+    }
+
+    @Test
+    public void delaysDoNotDrift() throws IOException {
+        File dir = record(11, 20 * MS, CaptureLog.DEFAULT_SEGMENT_SIZE);
+        FakeClock clock = new FakeClock();
+        clock.oversleep = 3 * MS;
+        Recorder recorder = new Recorder(clock);
+        ReplaySource source = new ReplaySource(dir, 1);
+        source.setClock(clock);
+        source.run(recorder);
+        assertEquals(20 * MS, (long) clock.sleeps.get(0));
+        for (int i = 1; i < clock.sleeps.size(); i++)
+            assertEquals("late by previous oversleep", 17 * MS, (long) clock.sleeps.get(i));
+        assertEquals(200 * MS + 3 * MS, recorder.times.get(10) - recorder.times.get(0));
+    }
+
+    @Test
+    public void range() throws IOException {
+        File dir = record(100, 10 * MS, 1024);
+        Recorder recorder = new Recorder(ReplaySource.SYSTEM_CLOCK);
+        ReplaySource source = new ReplaySource(dir, ReplaySource.AS_FAST_AS_POSSIBLE);
+        source.setRange(T0 + 50 * 10 * MS, T0 + 60 * 10 * MS);
+        source.run(recorder);
+        assertEquals(12, recorder.events.size());
+        assertEquals("rx50", recorder.events.get(1));
+        assertEquals("rx59", recorder.events.get(10));
+        assertEquals("eof", recorder.events.get(11));
+    }
+
+    @Test
+    public void stop() throws Exception {
+        File dir = record(100, 1000 * MS, CaptureLog.DEFAULT_SEGMENT_SIZE); // 100s
+        CountDownLatch sleeping = new CountDownLatch(1);
+        Recorder recorder = new Recorder(ReplaySource.SYSTEM_CLOCK);
+        ReplaySource source = new ReplaySource(dir, 1);
+        source.setClock(new ReplaySource.Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleep(long nanos) throws InterruptedException {
+                sleeping.countDown();
+                ReplaySource.SYSTEM_CLOCK.sleep(nanos); // until stop() interrupts
+            }
+        });
+        source.start(recorder);
+        assertTrue(sleeping.await(10, TimeUnit.SECONDS));
+        source.stop();
+        source.join();
+        assertEquals("connect", recorder.events.get(0));
+        assertEquals("rx0", recorder.events.get(1));
+        assertEquals("no eof after stop", 2, recorder.events.size());
+    }
+}
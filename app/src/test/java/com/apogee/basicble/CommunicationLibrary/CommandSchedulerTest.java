@@ -0,0 +1,126 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scheduling against a fake Link, callbacks run directly in the scheduler thread.
+ */
+public class CommandSchedulerTest {
+
+    private static class FakeLink implements CommandScheduler.Link {
+        final List<String> written = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger busyChecks = new AtomicInteger(); // isBusy() returns true this many times
+        volatile boolean alwaysBusy;
+        volatile IOException error;
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            if (error != null)
+                throw error;
+            written.add(new String(data));
+        }
+
+        @Override
+        public boolean isBusy() {
+            return alwaysBusy || busyChecks.getAndDecrement() > 0;
+        }
+    }
+
+    private static class Recorder implements CommandScheduler.Callback {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onSent() {
+            events.add("sent");
+            done.countDown();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            events.add("error " + e.getMessage());
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void oneShotWaitsWhileBusy() throws InterruptedException {
+        FakeLink link = new FakeLink();
+        link.busyChecks.set(3);
+        CommandScheduler scheduler = new CommandScheduler(link, Runnable::run);
+        Recorder recorder = new Recorder();
+        CommandScheduler.Task task = scheduler.scheduleOnce("cmd".getBytes(), 0, recorder);
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("sent"), recorder.events);
+        assertEquals(Collections.singletonList("cmd"), link.written);
+        assertEquals(1, task.getSentCount());
+        assertEquals(0, task.getMissedCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void oneShotWriteErrorReported() throws InterruptedException {
+        FakeLink link = new FakeLink();
+        link.error = new IOException("not connected");
+        CommandScheduler scheduler = new CommandScheduler(link, Runnable::run);
+        Recorder recorder = new Recorder();
+        CommandScheduler.Task task = scheduler.scheduleOnce("cmd".getBytes(), 0, recorder);
+        assertTrue(recorder.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("error not connected"), recorder.events);
+        assertEquals(1, task.getMissedCount());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void oneShotFailsWhenBusyTooLong() throws InterruptedException {
+        FakeLink link = new FakeLink();
+        link.alwaysBusy = true;
+        CommandScheduler scheduler = new CommandScheduler(link, Runnable::run);
+        Recorder recorder = new Recorder();
+        scheduler.scheduleOnce("cmd".getBytes(), 0, recorder);
+        assertTrue(recorder.done.await(TimeUnit.NANOSECONDS.toSeconds(CommandScheduler.MAX_BUSY_WAIT_NANOS) + 5, TimeUnit.SECONDS));
+        assertEquals(1, recorder.events.size());
+        assertTrue(recorder.events.get(0), recorder.events.get(0).startsWith("error link busy"));
+        assertEquals(0, link.written.size());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void cancelledOneShotNotWritten() throws InterruptedException {
+        FakeLink link = new FakeLink();
+        CommandScheduler scheduler = new CommandScheduler(link, Runnable::run);
+        Recorder recorder = new Recorder();
+        scheduler.scheduleOnce("cmd".getBytes(), 60000, recorder).cancel();
+        scheduler.shutdown();
+        assertEquals(0, link.written.size());
+        assertEquals(0, recorder.events.size());
+    }
+
+    @Test
+    public void periodicSkipsWhileBusy() throws InterruptedException {
+        FakeLink link = new FakeLink();
+        link.busyChecks.set(2);
+        CommandScheduler scheduler = new CommandScheduler(link, Runnable::run);
+        CommandScheduler.Task task = scheduler.schedulePeriodic("poll".getBytes(), 5);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (task.getSentCount() < 3 && System.nanoTime() < end)
+            Thread.sleep(5);
+        task.cancel();
+        assertTrue(task.getSentCount() >= 3);
+        assertTrue(task.getMissedCount() >= 2); // busy polls are dropped, not queued
+        for (String written : link.written)
+            assertEquals("poll", written);
+        scheduler.shutdown();
+    }
+}
@@ -0,0 +1,109 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Framing of the raw notification stream into lines.
+ */
+public class LineFramerTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void linesAcrossChunks() {
+        LineFramer framer = new LineFramer();
+        List<String> lines = new ArrayList<>();
+        framer.feed(bytes("OK\r\nERR"), lines::add);
+        assertEquals(Arrays.asList("OK"), lines);
+        framer.feed(bytes("OR 5\r"), lines::add);
+        framer.feed(bytes("\n\nlast\n"), lines::add);
+        assertEquals(Arrays.asList("OK", "ERROR 5", "", "last"), lines);
+    }
+
+    @Test
+    public void onlyCrBeforeLfDropped() {
+        LineFramer framer = new LineFramer();
+        List<String> lines = new ArrayList<>();
+        framer.feed(bytes("a\rb\r\r\n"), lines::add);
+        assertEquals(Arrays.asList("a\rb\r"), lines);
+    }
+
+    @Test
+    public void overlongLinesCut() {
+        LineFramer framer = new LineFramer(4);
+        List<String> lines = new ArrayList<>();
+        framer.feed(bytes("abcdefghij\n"), lines::add);
+        assertEquals(Arrays.asList("abcd", "efgh", "ij"), lines);
+    }
+
+    @Test
+    public void utf8() {
+        LineFramer framer = new LineFramer();
+        List<String> lines = new ArrayList<>();
+        byte[] data = "Größe: 5 €\n".getBytes(StandardCharsets.UTF_8);
+        framer.feed(Arrays.copyOfRange(data, 0, 4), lines::add); // split inside ö
+        framer.feed(Arrays.copyOfRange(data, 4, data.length), lines::add);
+        assertEquals(Arrays.asList("Größe: 5 €"), lines);
+    }
+
+    @Test
+    public void overlongLinesCutBeforeIncompleteCharacter() {
+        LineFramer framer = new LineFramer(4);
+        List<String> lines = new ArrayList<>();
+        framer.feed("ab€cd\n".getBytes(StandardCharsets.UTF_8), lines::add); // € is 3 bytes
+        assertEquals(Arrays.asList("ab", "€c", "d"), lines);
+        lines.clear();
+        framer.feed("a€d\n".getBytes(StandardCharsets.UTF_8), lines::add); // complete at the cut
+        assertEquals(Arrays.asList("a€", "d"), lines);
+    }
+
+    @Test
+    public void utf8Boundary() {
+        byte[] euro = "€".getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = {'a', euro[0], euro[1], euro[2]};
+        assertEquals(4, LineFramer.utf8Boundary(buffer, 4));
+        assertEquals(1, LineFramer.utf8Boundary(buffer, 3));
+        assertEquals(1, LineFramer.utf8Boundary(buffer, 2));
+        assertEquals(1, LineFramer.utf8Boundary(buffer, 1));
+        byte[] invalid = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80};
+        assertEquals(4, LineFramer.utf8Boundary(invalid, 4)); // no lead byte found, cut as is
+    }
+
+    @Test
+    public void reset() {
+        LineFramer framer = new LineFramer();
+        List<String> lines = new ArrayList<>();
+        framer.feed(bytes("partial"), lines::add);
+        framer.reset();
+        framer.feed(bytes("new\n"), lines::add);
+        assertEquals(Arrays.asList("new"), lines);
+    }
+
+    @Test
+    public void byteListenerSkipsString() {
+        LineFramer framer = new LineFramer();
+        int[] lengths = {0, 0};
+        framer.feed(bytes("abc\nde\n"), new LineFramer.LineListener() {
+            @Override
+            public void onLine(String line) {
+                throw new AssertionError("no String expected");
+            }
+
+            @Override
+            public void onLine(byte[] buffer, int length) {
+                lengths[lengths[0] == 0 ? 0 : 1] = length;
+            }
+        });
+        assertEquals(3, lengths[0]);
+        assertEquals(2, lengths[1]);
+    }
+}
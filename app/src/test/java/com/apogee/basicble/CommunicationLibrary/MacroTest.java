@@ -0,0 +1,100 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compiling macro scripts into steps.
+ */
+public class MacroTest {
+
+    private static void assertParseError(String script, int line) {
+        try {
+            Macro.compile(script, "\r\n");
+            fail("ParseException expected for " + script);
+        } catch (ParseException e) {
+            assertEquals(line, e.getErrorOffset());
+        }
+    }
+
+    @Test
+    public void sendAndExpect() throws ParseException {
+        Macro macro = Macro.compile("# comment\nsend $PAPOGEE,GET,VERSION\nexpect $PAPOGEE,VERSION\n\nsend A\n", "\r\n");
+        assertEquals(2, macro.steps.length);
+        assertArrayEquals("$PAPOGEE,GET,VERSION\r\n".getBytes(StandardCharsets.ISO_8859_1), macro.steps[0].payload);
+        assertTrue(macro.steps[0].matcher.matches("$PAPOGEE,VERSION,1.0"));
+        assertFalse(macro.steps[0].matcher.matches("$PAPOGEE,OK"));
+        assertEquals(1000, macro.steps[0].timeoutMillis);
+        assertNull(macro.steps[1].matcher);
+        assertEquals(2, macro.getTotalSends());
+    }
+
+    @Test
+    public void regexExpect() throws ParseException {
+        Macro macro = Macro.compile("send X\nexpect /OK,[0-9]+/", "\n");
+        assertTrue(macro.steps[0].matcher.matches("OK,12"));
+        assertFalse(macro.steps[0].matcher.matches("OK,12 "));
+    }
+
+    @Test
+    public void timeoutAppliesToFollowingExpects() throws ParseException {
+        Macro macro = Macro.compile("send X\ntimeout 5000\nexpect Y\nsend Z\nexpect W\ntimeout 200\nsend V\nexpect U", "\n");
+        assertEquals(5000, macro.steps[0].timeoutMillis);
+        assertEquals(5000, macro.steps[1].timeoutMillis);
+        assertEquals(200, macro.steps[2].timeoutMillis);
+    }
+
+    @Test
+    public void sendHex() throws ParseException {
+        Macro macro = Macro.compile("sendhex B5 62 06 01\nsendhex b562", "\n");
+        assertArrayEquals(new byte[]{(byte) 0xb5, 0x62, 0x06, 0x01}, macro.steps[0].payload);
+        assertArrayEquals(new byte[]{(byte) 0xb5, 0x62}, macro.steps[1].payload);
+        assertParseError("sendhex B5 6", 1);
+        assertParseError("send A\nsendhex B5 XX", 2);
+        assertParseError("sendhex", 1);
+    }
+
+    @Test
+    public void nestedLoops() throws ParseException {
+        Macro macro = Macro.compile("send A\nloop 3\nsend B\nloop 2\nwait 10\nsend C\nend\nend", "\n");
+        assertEquals(1 + 3 * (1 + 2), macro.getTotalSends());
+        assertEquals(Macro.StepType.Loop, macro.steps[1].type);
+        assertEquals(3, macro.steps[1].count);
+        assertEquals(7, macro.steps[1].target);
+        assertEquals(1, macro.steps[7].target);
+        assertEquals(10, macro.steps[4].waitMillis);
+    }
+
+    @Test
+    public void errors() {
+        assertParseError("expect OK", 1);
+        assertParseError("send A\nexpect B\nexpect C", 3);
+        assertParseError("wait 10\nexpect B", 2);
+        assertParseError("end", 1);
+        assertParseError("send A\nloop 2\nsend B", 2);
+        assertParseError("wait -1", 1);
+        assertParseError("timeout abc", 1);
+        assertParseError("\nfoo bar", 2);
+        assertParseError("loop 4294967296\nend", 1);
+        assertParseError("loop 2147483648\nend", 1);
+        assertParseError("send X\nexpect /OK,[0-9/", 2);
+        assertParseError("send X\nexpect /(/", 2);
+    }
+
+    @Test
+    public void sendCountOverflow() throws ParseException {
+        Macro macro = Macro.compile("loop 2147483647\nloop 2147483647\nsend A\nend\nend", "\n");
+        assertEquals(2147483647L * 2147483647L, macro.getTotalSends());
+        assertParseError("loop 2147483647\nloop 2147483647\nloop 2147483647\nsend A\nend\nend\nend", 1);
+        assertParseError("loop 3\nloop 2147483647\nloop 2147483647\nsend A\nsend B\nend\nend\nend", 1);
+    }
+}
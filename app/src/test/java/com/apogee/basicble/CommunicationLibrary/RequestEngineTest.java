@@ -0,0 +1,210 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request/response correlation with a recording writer, callbacks run directly in the calling thread.
+ */
+public class RequestEngineTest {
+
+    private static final long LONG_TIMEOUT = 60000; // never reached in a test
+
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private final RequestEngine engine = new RequestEngine(data -> written.add(new String(data, StandardCharsets.ISO_8859_1)), Runnable::run);
+
+    private static class Recorder implements RequestEngine.Callback {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onResponse(String response) {
+            events.add(response);
+            done.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            events.add(e.getClass().getSimpleName());
+            done.countDown();
+        }
+    }
+
+    private void receive(String text) {
+        engine.onData(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void matchesOldestOutstanding() {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        Recorder c = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.prefix("+A"), LONG_TIMEOUT, a);
+        engine.submit(new byte[]{'b'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, b);
+        engine.submit(new byte[]{'c'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, c);
+        assertEquals(Arrays.asList("a", "b", "c"), written);
+        receive("unrelated\nOK 1\n+A x\nOK 2\n");
+        assertEquals(Arrays.asList("+A x"), a.events);
+        assertEquals(Arrays.asList("OK 1"), b.events);
+        assertEquals(Arrays.asList("OK 2"), c.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void windowLimitsWrites() {
+        engine.setMaxOutstanding(1);
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.any(), LONG_TIMEOUT, a);
+        engine.submit(new byte[]{'b'}, ResponseMatcher.any(), LONG_TIMEOUT, b);
+        assertEquals(Arrays.asList("a"), written);
+        receive("1\n");
+        assertEquals(Arrays.asList("a", "b"), written);
+        receive("2\n");
+        assertEquals(Arrays.asList("1"), a.events);
+        assertEquals(Arrays.asList("2"), b.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void cancelledRequestSwallowsLateResponse() {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        Recorder c = new Recorder();
+        RequestEngine.Request request = engine.submit(new byte[]{'a'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, a);
+        request.cancel();
+        engine.submit(new byte[]{'b'}, ResponseMatcher.prefix("+B"), LONG_TIMEOUT, b);
+        receive("OK a\n+B\n");
+        assertEquals(0, a.events.size());
+        assertEquals(Arrays.asList("+B"), b.events);
+        engine.submit(new byte[]{'c'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, c);
+        receive("OK c\n");
+        assertEquals("tombstone used up", Arrays.asList("OK c"), c.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void tombstoneDoesNotBlockWindow() {
+        engine.setMaxOutstanding(1);
+        Recorder b = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.any(), LONG_TIMEOUT, new Recorder()).cancel();
+        engine.submit(new byte[]{'b'}, ResponseMatcher.any(), LONG_TIMEOUT, b);
+        assertEquals(Arrays.asList("a", "b"), written);
+        receive("b\n");
+        assertEquals(Arrays.asList("b"), b.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void cancelWaitingRequestIsNotWritten() {
+        engine.setMaxOutstanding(1);
+        engine.submit(new byte[]{'a'}, ResponseMatcher.any(), LONG_TIMEOUT, new Recorder());
+        engine.submit(new byte[]{'b'}, ResponseMatcher.any(), LONG_TIMEOUT, new Recorder()).cancel();
+        receive("1\n");
+        assertEquals(Arrays.asList("a"), written);
+        engine.shutdown();
+    }
+
+    @Test
+    public void timedOutRequestSwallowsLateResponse() throws InterruptedException {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.prefix("OK"), 20, a);
+        assertTrue(a.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(TimeoutException.class.getSimpleName()), a.events);
+        receive("OK a\n");
+        engine.submit(new byte[]{'b'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, b);
+        receive("OK b\n");
+        assertEquals(1, a.events.size());
+        assertEquals(Arrays.asList("OK b"), b.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void lostResponseDoesNotShiftLaterResponses() throws InterruptedException {
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        Recorder c = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.prefix("OK"), 20, a);
+        assertTrue(a.done.await(5, TimeUnit.SECONDS)); // response of a lost, a is a tombstone now
+        engine.submit(new byte[]{'b'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, b);
+        engine.submit(new byte[]{'c'}, ResponseMatcher.prefix("OK"), LONG_TIMEOUT, c);
+        receive("OK b\nOK c\n");
+        assertEquals(Arrays.asList(TimeoutException.class.getSimpleName()), a.events);
+        assertEquals(Arrays.asList("OK b"), b.events);
+        assertEquals(Arrays.asList("OK c"), c.events);
+        engine.shutdown();
+    }
+
+    @Test
+    public void batchStopsAtFirstError() {
+        RequestEngine failing = new RequestEngine(data -> {
+            if (data[0] == 'b')
+                throw new IOException("write failed");
+        }, Runnable::run);
+        List<String> events = new ArrayList<>();
+        failing.submitBatch(Arrays.asList(
+                new RequestEngine.Command(new byte[]{'a'}, ResponseMatcher.any(), LONG_TIMEOUT),
+                new RequestEngine.Command(new byte[]{'b'}, ResponseMatcher.any(), LONG_TIMEOUT),
+                new RequestEngine.Command(new byte[]{'c'}, ResponseMatcher.any(), LONG_TIMEOUT)), new RequestEngine.BatchCallback() {
+            @Override
+            public void onComplete(List<String> responses) {
+                events.add("complete");
+            }
+
+            @Override
+            public void onError(int index, Exception e) {
+                events.add("error " + index);
+            }
+        });
+        failing.onData("x\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(Arrays.asList("error 1"), events);
+        failing.shutdown();
+    }
+
+    @Test
+    public void batchCompletesInOrder() {
+        List<List<String>> results = new ArrayList<>();
+        engine.submitBatch(Arrays.asList(
+                new RequestEngine.Command(new byte[]{'a'}, ResponseMatcher.prefix("A"), LONG_TIMEOUT),
+                new RequestEngine.Command(new byte[]{'b'}, ResponseMatcher.prefix("B"), LONG_TIMEOUT)), new RequestEngine.BatchCallback() {
+            @Override
+            public void onComplete(List<String> responses) {
+                results.add(responses);
+            }
+
+            @Override
+            public void onError(int index, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        receive("B2\nA1\n");
+        assertEquals(Arrays.asList(Arrays.asList("A1", "B2")), results);
+        engine.shutdown();
+    }
+
+    @Test
+    public void cancelAllFailsPending() {
+        engine.setMaxOutstanding(1);
+        Recorder a = new Recorder();
+        Recorder b = new Recorder();
+        engine.submit(new byte[]{'a'}, ResponseMatcher.any(), LONG_TIMEOUT, a);
+        engine.submit(new byte[]{'b'}, ResponseMatcher.any(), LONG_TIMEOUT, b);
+        engine.cancelAll(new IOException("disconnected"));
+        assertEquals(Arrays.asList("IOException"), a.events);
+        assertEquals(Arrays.asList("IOException"), b.events);
+        engine.shutdown();
+    }
+}
@@ -0,0 +1,33 @@
+package com.apogee.basicble.CommunicationLibrary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseMatcherTest {
+
+    @Test
+    public void prefix() {
+        ResponseMatcher matcher = ResponseMatcher.prefix("+VER:");
+        assertTrue(matcher.matches("+VER: 1.2"));
+        assertTrue(matcher.matches("+VER:"));
+        assertFalse(matcher.matches(" +VER: 1.2"));
+        assertFalse(matcher.matches("+VE"));
+    }
+
+    @Test
+    public void regexMatchesWholeLine() {
+        ResponseMatcher matcher = ResponseMatcher.regex("OK|ERROR \\d+");
+        assertTrue(matcher.matches("OK"));
+        assertTrue(matcher.matches("ERROR 12"));
+        assertFalse(matcher.matches("OK then"));
+        assertFalse(matcher.matches("ERROR"));
+    }
+
+    @Test
+    public void any() {
+        assertTrue(ResponseMatcher.any().matches(""));
+        assertTrue(ResponseMatcher.any().matches("whatever"));
+    }
+}
@@ -0,0 +1,94 @@
+package com.apogee.basicble.Utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Dedup by address and snapshot order of DeviceRegistry. Devices are built from address and name,
+ * without a BluetoothDevice.
+ */
+public class DeviceRegistryTest {
+
+    private static BluetoothUtil.Device device(String address, String name) {
+        return new BluetoothUtil.Device(null, address, name);
+    }
+
+    private static String addresses(List<BluetoothUtil.Device> devices) {
+        StringBuilder sb = new StringBuilder();
+        for (BluetoothUtil.Device device : devices)
+            sb.append(sb.length() == 0 ? "" : " ").append(device.getAddress());
+        return sb.toString();
+    }
+
+    @Test
+    public void addByAddress() {
+        DeviceRegistry registry = new DeviceRegistry();
+        BluetoothUtil.Device a = device("00:00:00:00:00:0A", "NAV A");
+        assertTrue(registry.add(a));
+        assertFalse(registry.add(device("00:00:00:00:00:0A", "other name")));
+        assertTrue(registry.add(device("00:00:00:00:00:0B", null)));
+        assertEquals(2, registry.size());
+        assertSame(a, registry.get("00:00:00:00:00:0A"));
+        assertNull(registry.get("00:00:00:00:00:0C"));
+
+        assertTrue(registry.addRssi("00:00:00:00:00:0A", 0, -60));
+        assertFalse(registry.addRssi("00:00:00:00:00:0C", 0, -60));
+
+        registry.clear();
+        assertEquals(0, registry.size());
+        assertTrue(registry.add(a));
+    }
+
+    @Test
+    public void snapshotStrongestFirst() {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.add(device("A", "a"));
+        registry.add(device("B", "b"));
+        registry.add(device("C", "c"));
+        registry.add(device("D", "d"));
+        assertEquals("A B C D", addresses(registry.snapshot(0))); // no signal, order of discovery
+
+        registry.addRssi("B", 0, -80);
+        registry.addRssi("C", 0, -50);
+        registry.addRssi("D", 1000, -65);
+        List<BluetoothUtil.Device> snapshot = registry.snapshot(3500);
+        assertEquals("C D B A", addresses(snapshot));
+        assertEquals(-50, snapshot.get(0).getRssi());
+        assertEquals(3, snapshot.get(0).getLastSeenAge());
+        assertEquals(2, snapshot.get(1).getLastSeenAge());
+        assertEquals(BluetoothUtil.Device.NO_RSSI, snapshot.get(3).getRssi());
+        assertEquals(-1, snapshot.get(3).getLastSeenAge());
+        assertEquals("c", snapshot.get(0).getName());
+        try {
+            snapshot.clear();
+            fail("snapshot must be unmodifiable");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        registry.addRssi("A", 4000, -48); // within hysteresis of C, stays behind it
+        assertEquals("C A D B", addresses(registry.snapshot(4000)));
+        assertEquals("C D B A", addresses(snapshot)); // earlier snapshot is a copy
+    }
+
+    @Test
+    public void snapshotDoesNotChangeDevices() {
+        DeviceRegistry registry = new DeviceRegistry();
+        BluetoothUtil.Device a = device("A", "a");
+        registry.add(a);
+        registry.addRssi("A", 0, -70);
+        List<BluetoothUtil.Device> snapshot = registry.snapshot(0);
+        assertEquals(a, snapshot.get(0)); // equal by address
+        assertEquals(-70, snapshot.get(0).getRssi());
+        assertEquals(BluetoothUtil.Device.NO_RSSI, a.getRssi());
+        assertEquals(Arrays.asList(a), registry.snapshot(0));
+    }
+}
@@ -0,0 +1,155 @@
+package com.apogee.basicble.Utils;
+
+import com.apogee.basicble.Benchmark;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the table driven hex codec in TextUtil with the previous implementation, kept here as legacy* methods.
+ * sameResults runs with the unit tests. benchmark prints ns/byte for each variant and only runs with
+ * ./gradlew testDebugUnitTest -Pbenchmark, see Benchmark.
+ * Edge cases of the codec are covered by TextUtilHexTest.
+ */
+public class HexCodecBenchmark {
+
+    private static final int SIZE = 4096;
+    private static final int WARMUP = 2000;
+    private static final int ROUNDS = 5000;
+
+    private final byte[] data = new byte[SIZE];
+    private final String hex;
+
+    public HexCodecBenchmark() {
+        new Random(42).nextBytes(data);
+        hex = legacyToHexString(data);
+    }
+
+    @Test
+    public void sameResults() {
+        assertEquals(legacyToHexString(data), TextUtil.toHexString(data));
+        assertArrayEquals(legacyFromHexString(hex), TextUtil.fromHexString(hex));
+        for (String s : new String[]{"", "a", "0a b", "A B C", "xyz 12 g3", "ffF"})
+            assertArrayEquals(s, legacyFromHexString(s), TextUtil.fromHexString(s));
+
+        StringBuilder sb = new StringBuilder("x");
+        TextUtil.toHexString(sb, new byte[]{1, (byte) 0xab});
+        assertEquals("x 01 AB", sb.toString());
+
+        char[] chars = new char[3 * SIZE];
+        int len = TextUtil.encodeHex(data, 0, SIZE, chars, 0);
+        assertEquals(hex, new String(chars, 0, len));
+        assertEquals(hex, new String(chars, 0, TextUtil.encodeHex(ByteBuffer.wrap(data), chars, 0)));
+
+        byte[] bytes = new byte[SIZE];
+        assertEquals(SIZE, TextUtil.decodeHex(hex, 0, hex.length(), bytes, 0));
+        assertArrayEquals(data, bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+        assertEquals(SIZE, TextUtil.decodeHex(hex, direct));
+        direct.flip();
+        direct.get(bytes);
+        assertArrayEquals(data, bytes);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark() {
+        char[] chars = new char[3 * SIZE];
+        byte[] bytes = new byte[SIZE];
+        StringBuilder sb = new StringBuilder(3 * SIZE);
+        report("encode legacy toHexString(sb)", () -> {
+            sb.setLength(0);
+            legacyToHexString(sb, data, 0, data.length);
+            return sb.length();
+        });
+        report("encode toHexString(sb)", () -> {
+            sb.setLength(0);
+            TextUtil.toHexString(sb, data);
+            return sb.length();
+        });
+        report("encode encodeHex(char[])", () -> TextUtil.encodeHex(data, 0, SIZE, chars, 0));
+        report("decode legacy fromHexString", () -> legacyFromHexString(hex).length);
+        report("decode fromHexString", () -> TextUtil.fromHexString(hex).length);
+        report("decode decodeHex(byte[])", () -> TextUtil.decodeHex(hex, 0, hex.length(), bytes, 0));
+    }
+
+    private interface Op {
+        int run();
+    }
+
+    private static void report(String name, Op op) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++)
+            sink += op.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++)
+            sink += op.run();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-32s %6.2f ns/byte (%d)%n", name, (double) elapsed / ROUNDS / SIZE, sink & 1);
+    }
+
+    /*
+     * previous implementations
+     */
+
+    private static byte[] legacyFromHexString(final CharSequence s) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        byte b = 0;
+        int nibble = 0;
+        for (int pos = 0; pos < s.length(); pos++) {
+            if (nibble == 2) {
+                buf.write(b);
+                nibble = 0;
+                b = 0;
+            }
+            int c = s.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                nibble++;
+                b *= 16;
+                b += c - '0';
+            }
+            if (c >= 'A' && c <= 'F') {
+                nibble++;
+                b *= 16;
+                b += c - 'A' + 10;
+            }
+            if (c >= 'a' && c <= 'f') {
+                nibble++;
+                b *= 16;
+                b += c - 'a' + 10;
+            }
+        }
+        if (nibble > 0)
+            buf.write(b);
+        return buf.toByteArray();
+    }
+
+    private static String legacyToHexString(final byte[] buf) {
+        StringBuilder sb = new StringBuilder(3 * buf.length);
+        legacyToHexString(sb, buf, 0, buf.length);
+        return sb.toString();
+    }
+
+    private static void legacyToHexString(StringBuilder sb, final byte[] buf, int begin, int end) {
+        for (int pos = begin; pos < end; pos++) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            int c;
+            c = (buf[pos] & 0xff) / 16;
+            if (c >= 10) c += 'A' - 10;
+            else c += '0';
+            sb.append((char) c);
+            c = (buf[pos] & 0xff) % 16;
+            if (c >= 10) c += 'A' - 10;
+            else c += '0';
+            sb.append((char) c);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.apogee.basicble.Utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ring, smoothing and hysteresis sort of RssiTracker, without Bluetooth or Android classes.
+ */
+public class RssiTrackerTest {
+
+    private static RssiTracker tracker(long time, int rssi) {
+        RssiTracker tracker = new RssiTracker();
+        tracker.add(time, rssi);
+        return tracker;
+    }
+
+    @Test
+    public void ring() {
+        RssiTracker tracker = new RssiTracker();
+        assertEquals(0, tracker.size());
+        assertEquals(Long.MIN_VALUE, tracker.getLastSeen());
+        assertTrue(Double.isInfinite(tracker.getSmoothed()));
+        for (int i = 0; i < RssiTracker.CAPACITY + 5; i++)
+            tracker.add(i * 100, -i);
+        assertEquals(RssiTracker.CAPACITY, tracker.size());
+        assertEquals(-5, tracker.getRssi(0));
+        assertEquals(500, tracker.getTime(0));
+        assertEquals(-(RssiTracker.CAPACITY + 4), tracker.getRssi(RssiTracker.CAPACITY - 1));
+        assertEquals((RssiTracker.CAPACITY + 4) * 100, tracker.getLastSeen());
+    }
+
+    @Test
+    public void smoothing() {
+        RssiTracker tracker = tracker(0, -60);
+        assertEquals(-60, tracker.getSmoothed(), 0);
+        tracker.add(100, -90); // single outlier moves the average only a little
+        assertTrue(tracker.getSmoothed() > -64);
+        for (int i = 2; i < 100; i++)
+            tracker.add(i * 100, i % 2 == 0 ? -70 : -74);
+        assertEquals(-72, tracker.getSmoothed(), 1.5);
+
+        RssiTracker fast = tracker(0, -60);
+        RssiTracker slow = tracker(0, -60);
+        for (int i = 1; i <= 10; i++)
+            fast.add(i * 100, -80);
+        slow.add(1000, -80);
+        assertEquals("weight depends on time, not on sample count", fast.getSmoothed(), slow.getSmoothed(), 3);
+
+        RssiTracker late = tracker(1000, -60);
+        late.add(500, -60); // out of order sample is treated as simultaneous
+        assertEquals(1000, late.getLastSeen());
+    }
+
+    @Test
+    public void sortWithHysteresis() {
+        RssiTracker a = tracker(0, -70);
+        RssiTracker b = tracker(0, -68);
+        RssiTracker c = tracker(0, -50);
+        RssiTracker d = new RssiTracker(); // no signal yet
+        List<RssiTracker> list = new ArrayList<>(Arrays.asList(d, a, b, c));
+        RssiTracker.sortStrongestFirst(list, t -> t, 0);
+        assertEquals(Arrays.asList(c, a, b, d), list); // a and b within hysteresis keep their order
+
+        for (int i = 1; i <= 50; i++)
+            b.add(i * 100, -60);
+        RssiTracker.sortStrongestFirst(list, t -> t, 5000);
+        assertEquals(Arrays.asList(c, b, a, d), list);
+    }
+
+    @Test
+    public void sortLooksPastRowsWithinHysteresis() {
+        RssiTracker a = tracker(0, -70);
+        RssiTracker b = tracker(0, -68);
+        RssiTracker c = tracker(0, -65);
+        List<RssiTracker> list = new ArrayList<>(Arrays.asList(a, b, c));
+        RssiTracker.sortStrongestFirst(list, t -> t, 0);
+        assertEquals(Arrays.asList(c, a, b), list); // c within hysteresis of b, but clearly stronger than a
+        RssiTracker.sortStrongestFirst(list, t -> t, 0);
+        assertEquals(Arrays.asList(c, a, b), list); // stable
+    }
+
+    @Test
+    public void staleSortedLast() {
+        RssiTracker gone = tracker(0, -40);
+        RssiTracker near = tracker(0, -80);
+        near.add(RssiTracker.STALE + 1000, -80);
+        List<RssiTracker> list = new ArrayList<>(Arrays.asList(gone, near));
+        RssiTracker.sortStrongestFirst(list, t -> t, RssiTracker.STALE / 2);
+        assertEquals(Arrays.asList(gone, near), list);
+        RssiTracker.sortStrongestFirst(list, t -> t, RssiTracker.STALE + 1000);
+        assertEquals(Arrays.asList(near, gone), list);
+    }
+}
@@ -0,0 +1,105 @@
+package com.apogee.basicble.Utils;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merging advertisements into the registry: filter, dedup by address and name lookups.
+ * Calls merge() directly without the background thread, advertisements carry an address and no BluetoothDevice.
+ */
+public class ScanBatcherTest {
+
+    /**
+     * accepts names starting with NAV, looks up names in a map and counts the lookups
+     */
+    private static class TestBatcher extends ScanBatcher {
+        final Map<String, String> names = new HashMap<>();
+        final List<String> lookups = new ArrayList<>();
+        String lookupAddress; // address of the advertisement being merged, as there is no BluetoothDevice
+
+        TestBatcher() {
+            super(250, device -> device.getName() != null && device.getName().startsWith("NAV"), Runnable::run, devices -> {
+            }, null);
+        }
+
+        @Override
+        String getName(BluetoothDevice device) {
+            lookups.add(lookupAddress);
+            return names.get(lookupAddress);
+        }
+
+        boolean merge(Advertisement... advertisements) {
+            boolean changed = false;
+            for (Advertisement advertisement : advertisements) {
+                lookupAddress = advertisement.address;
+                changed |= merge(Arrays.asList(advertisement));
+            }
+            return changed;
+        }
+    }
+
+    private static ScanBatcher.Advertisement advertisement(String address, String name, int rssi) {
+        return new ScanBatcher.Advertisement(null, address, name, rssi, 0);
+    }
+
+    @Test
+    public void nameFromAdvertisement() {
+        TestBatcher batcher = new TestBatcher();
+        assertTrue(batcher.merge(advertisement("A", "NAV A", -60)));
+        assertEquals("NAV A", batcher.registry.get("A").getName());
+        assertFalse(batcher.merge(advertisement("B", "PHONE", -50)));
+        assertNull(batcher.registry.get("B"));
+        assertEquals(0, batcher.lookups.size());
+    }
+
+    @Test
+    public void dedupByAddress() {
+        TestBatcher batcher = new TestBatcher();
+        batcher.merge(advertisement("A", "NAV A", -60), advertisement("A", "NAV A", -62), advertisement("A", null, -61));
+        assertEquals(1, batcher.registry.size());
+        assertFalse("repeated advertisement without signal changes nothing",
+                batcher.merge(advertisement("A", "NAV A", ScanBatcher.RSSI_UNAVAILABLE)));
+        assertTrue(batcher.merge(advertisement("A", "NAV A", -70)));
+        assertEquals(1, batcher.registry.size());
+        assertEquals(0, batcher.lookups.size());
+    }
+
+    @Test
+    public void unnamedLookedUpOnce() {
+        TestBatcher batcher = new TestBatcher();
+        batcher.names.put("C", "NAV C");
+        batcher.merge(advertisement("A", null, -60), advertisement("A", null, -60), advertisement("C", null, -60));
+        batcher.merge(advertisement("A", null, -61));
+        assertEquals(Arrays.asList("A", "C"), batcher.lookups);
+        assertNull(batcher.registry.get("A"));
+        assertEquals("NAV C", batcher.registry.get("C").getName());
+
+        assertTrue("a later advertisement with name is accepted", batcher.merge(advertisement("A", "NAV A", -60)));
+        assertEquals("NAV A", batcher.registry.get("A").getName());
+        assertEquals(2, batcher.lookups.size());
+    }
+
+    @Test
+    public void rejectedNotLookedUp() {
+        TestBatcher batcher = new TestBatcher();
+        batcher.merge(advertisement("B", "PHONE", -50));
+        batcher.merge(advertisement("B", null, -50), advertisement("B", "NAV B", -50));
+        assertNull("rejected by name until clear()", batcher.registry.get("B"));
+
+        batcher.names.put("D", "PHONE");
+        batcher.merge(advertisement("D", null, -50), advertisement("D", null, -50));
+        assertEquals(Arrays.asList("D"), batcher.lookups);
+    }
+}
@@ -0,0 +1,105 @@
+package com.apogee.basicble.Utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * UTF-8 decoding of a chunked stream: sequences split over chunks, reset() and malformed input.
+ */
+public class StreamDecoderTest {
+
+    private static final String TEXT = "Aé€😀Z"; // 1, 2, 3 and 4 byte sequences
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            data[i] = (byte) values[i];
+        return data;
+    }
+
+    private static String decode(StreamDecoder decoder, byte[] data) {
+        return decoder.decode(data).toString();
+    }
+
+    @Test
+    public void wholeChunk() {
+        StreamDecoder decoder = new StreamDecoder();
+        assertEquals(TEXT, decode(decoder, TEXT.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("", decode(decoder, new byte[0]));
+        byte[] data = "xxOKxx".getBytes(StandardCharsets.UTF_8);
+        assertEquals("OK", decoder.decode(data, 2, 2).toString());
+    }
+
+    @Test
+    public void splitAtEveryPosition() {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= data.length; split++) {
+            StreamDecoder decoder = new StreamDecoder();
+            String first = decode(decoder, Arrays.copyOfRange(data, 0, split));
+            String second = decode(decoder, Arrays.copyOfRange(data, split, data.length));
+            assertEquals("split at " + split, TEXT, first + second);
+        }
+    }
+
+    @Test
+    public void byteByByte() {
+        byte[] data = TEXT.getBytes(StandardCharsets.UTF_8);
+        StreamDecoder decoder = new StreamDecoder();
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data)
+            sb.append(decoder.decode(new byte[]{b}));
+        assertEquals(TEXT, sb.toString());
+
+        assertEquals("", decode(decoder, bytes(0xf0, 0x9f)));
+        assertEquals("", decode(decoder, bytes(0x98)));
+        assertEquals("😀", decode(decoder, bytes(0x80)));
+    }
+
+    @Test
+    public void resetDropsIncompleteSequence() {
+        StreamDecoder decoder = new StreamDecoder();
+        assertEquals("A", decode(decoder, bytes('A', 0xe2, 0x82)));
+        decoder.reset();
+        assertEquals("B", decode(decoder, bytes('B')));
+        assertEquals("€", decode(decoder, bytes(0xe2, 0x82, 0xac)));
+
+        assertEquals("", decode(decoder, bytes(0xf0, 0x9f, 0x98)));
+        decoder.reset();
+        assertEquals("\uFFFDC", decode(decoder, bytes(0x80, 'C'))); // rest of the dropped sequence is malformed
+    }
+
+    @Test
+    public void malformedReplaced() {
+        StreamDecoder decoder = new StreamDecoder();
+        assertEquals("\uFFFDA", decode(decoder, bytes(0x80, 'A')));             // continuation byte without start
+        assertEquals("\uFFFDB", decode(decoder, bytes(0xff, 'B')));             // never valid in UTF-8
+        assertEquals("\uFFFDC", decode(decoder, bytes(0xe2, 0x82, 'C')));       // sequence cut short
+        assertEquals("\uFFFD\uFFFDD", decode(decoder, bytes(0xc0, 0x80, 'D'))); // overlong encoding
+    }
+
+    @Test
+    public void malformedSplitOverChunks() {
+        StreamDecoder decoder = new StreamDecoder();
+        assertEquals("", decode(decoder, bytes(0xe2)));
+        assertEquals("", decode(decoder, bytes(0x82)));
+        assertEquals("\uFFFDE", decode(decoder, bytes('E')));
+        assertEquals("é", decode(decoder, bytes(0xc3, 0xa9))); // decoder continues normally
+    }
+
+    @Test
+    public void largeChunk() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append(TEXT);
+        String text = sb.toString();
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        StreamDecoder decoder = new StreamDecoder();
+        assertEquals("", decode(decoder, bytes(0xe2)));
+        assertEquals("\uFFFD" + text, decode(decoder, data));
+        assertEquals(TEXT, decode(decoder, TEXT.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,102 @@
+package com.apogee.basicble.Utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Edge cases of the hex codec in TextUtil.
+ */
+public class TextUtilHexTest {
+
+    private static byte[] allBytes() {
+        byte[] data = new byte[256];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    @Test
+    public void encodeEmpty() {
+        assertEquals("", TextUtil.toHexString(new byte[0]));
+        assertEquals(0, TextUtil.encodeHex(new byte[]{1}, 0, 0, new char[0], 0));
+        assertEquals(0, TextUtil.encodeHex(ByteBuffer.allocate(0), new char[0], 0));
+        StringBuilder sb = new StringBuilder("x");
+        TextUtil.toHexString(sb, new byte[0]);
+        assertEquals("x", sb.toString());
+    }
+
+    @Test
+    public void encodeSeparatorsAndCase() {
+        assertEquals("00", TextUtil.toHexString(new byte[]{0}));
+        assertEquals("7F 80 FF", TextUtil.toHexString(new byte[]{0x7f, (byte) 0x80, (byte) 0xff}));
+        StringBuilder sb = new StringBuilder();
+        TextUtil.toHexString(sb, new byte[]{1, (byte) 0xab});
+        assertEquals("01 AB", sb.toString()); // no leading space on empty builder
+        TextUtil.toHexString(sb, new byte[]{2});
+        assertEquals("01 AB 02", sb.toString());
+    }
+
+    @Test
+    public void encodeOffsets() {
+        char[] chars = "??????????".toCharArray();
+        int length = TextUtil.encodeHex(new byte[]{1, 2, 3, 4}, 1, 2, chars, 3);
+        assertEquals(5, length);
+        assertEquals("???02 03??", new String(chars));
+
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, 3});
+        buffer.position(1);
+        chars = new char[8];
+        assertEquals(5, TextUtil.encodeHex(buffer, chars, 0));
+        assertEquals("02 03", new String(chars, 0, 5));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void decodeSkipsOtherChars() {
+        assertArrayEquals(new byte[0], TextUtil.fromHexString(""));
+        assertArrayEquals(new byte[0], TextUtil.fromHexString(" xyz\n"));
+        assertArrayEquals(new byte[]{(byte) 0xab, (byte) 0xcd}, TextUtil.fromHexString("aB:Cd"));
+        assertArrayEquals(new byte[]{0x12, 0x34}, TextUtil.fromHexString("1ä2 34")); // non ASCII skipped
+        assertArrayEquals(new byte[]{0x0f}, TextUtil.fromHexString("f")); // single trailing digit is its own byte
+        assertArrayEquals(new byte[]{0x12, 0x03}, TextUtil.fromHexString("12 3"));
+    }
+
+    @Test
+    public void decodeIntoBuffers() {
+        byte[] dst = new byte[6];
+        assertEquals(2, TextUtil.decodeHex("xx01 02xx", 2, 7, dst, 4));
+        assertArrayEquals(new byte[]{0, 0, 0, 0, 1, 2}, dst);
+
+        ByteBuffer heap = ByteBuffer.allocate(4);
+        heap.position(1);
+        assertEquals(3, TextUtil.decodeHex("0a0b0c", heap));
+        assertEquals(4, heap.position());
+        assertArrayEquals(new byte[]{0, 10, 11, 12}, heap.array());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        assertEquals(3, TextUtil.decodeHex("ff 00 1", direct));
+        direct.flip();
+        byte[] bytes = new byte[3];
+        direct.get(bytes);
+        assertArrayEquals(new byte[]{(byte) 0xff, 0, 1}, bytes);
+
+        ByteBuffer slice = ByteBuffer.wrap(new byte[8], 2, 4).slice(); // array offset != 0
+        assertEquals(2, TextUtil.decodeHex("1234", slice));
+        assertEquals(0x12, slice.get(0));
+        assertEquals(0x34, slice.get(1));
+    }
+
+    @Test
+    public void roundTripAllBytes() {
+        byte[] data = allBytes();
+        String hex = TextUtil.toHexString(data);
+        assertEquals(3 * data.length - 1, hex.length());
+        assertArrayEquals(data, TextUtil.fromHexString(hex));
+        assertArrayEquals(data, TextUtil.fromHexString(hex.toLowerCase()));
+        assertArrayEquals(data, TextUtil.fromHexString(hex.replace(" ", "")));
+    }
+}